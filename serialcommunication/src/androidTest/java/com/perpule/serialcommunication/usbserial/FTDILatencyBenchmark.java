@@ -0,0 +1,114 @@
+package com.perpule.serialcommunication.usbserial;
+
+import android.content.Context;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbManager;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Round trip time of short frames with the default and the low FTDI latency timer.
+ *
+ * Needs an FTDI adapter with TX wired to RX and USB permission already granted to the test package, skipped otherwise.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FTDILatencyBenchmark {
+    private static final String TAG = FTDILatencyBenchmark.class.getSimpleName();
+    private static final int FTDI_VENDOR_ID = 0x0403;
+    private static final int FRAME_SIZE = 8;
+    private static final int ROUND_TRIPS = 200;
+    private static final int TIMEOUT = 1000;
+
+    private UsbDeviceConnection connection;
+    private FTDISerialDevice serialDevice;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        UsbManager usbManager = (UsbManager) context.getSystemService(Context.USB_SERVICE);
+        UsbDevice device = null;
+        for (UsbDevice candidate : usbManager.getDeviceList().values()) {
+            if (candidate.getVendorId() == FTDI_VENDOR_ID && usbManager.hasPermission(candidate)) {
+                device = candidate;
+                break;
+            }
+        }
+        assumeTrue("No FTDI loopback adapter with permission", device != null);
+
+        connection = usbManager.openDevice(device);
+        serialDevice = new FTDISerialDevice(device, connection);
+        assumeTrue(serialDevice.syncOpen());
+        serialDevice.configure(SerialConfig.DEFAULT.withBaudRate(115200));
+    }
+
+    @After
+    public void tearDown() {
+        if (serialDevice != null)
+            serialDevice.syncClose();
+        if (connection != null)
+            connection.close();
+    }
+
+    @Test
+    public void roundTrip_lowLatencyTimer() {
+        assertTrue(serialDevice.setLatencyTimer(FTDISerialDevice.FTDI_LATENCY_TIMER_DEFAULT));
+        assertEquals(FTDISerialDevice.FTDI_LATENCY_TIMER_DEFAULT, serialDevice.getLatencyTimer());
+        long defaultMedian = medianRoundTrip();
+
+        assertTrue(serialDevice.setLatencyTimer(FTDISerialDevice.FTDI_LATENCY_TIMER_LOW));
+        assertEquals(FTDISerialDevice.FTDI_LATENCY_TIMER_LOW, serialDevice.getLatencyTimer());
+        long lowMedian = medianRoundTrip();
+
+        Log.i(TAG, FRAME_SIZE + " byte frame round trip, median of " + ROUND_TRIPS + ": latency timer "
+                + FTDISerialDevice.FTDI_LATENCY_TIMER_DEFAULT + " ms " + defaultMedian / 1000 + " us, latency timer "
+                + FTDISerialDevice.FTDI_LATENCY_TIMER_LOW + " ms " + lowMedian / 1000 + " us");
+        assertTrue(lowMedian < defaultMedian);
+    }
+
+    @Test
+    public void configure_smallFramesLowerLatencyTimer() {
+        serialDevice.configure(SerialConfig.DEFAULT.withBaudRate(115200).withFrameSize(FRAME_SIZE));
+        assertEquals(FTDISerialDevice.FTDI_LATENCY_TIMER_LOW, serialDevice.getLatencyTimer());
+
+        serialDevice.configure(SerialConfig.DEFAULT.withBaudRate(115200).withFrameSize(4096));
+        assertEquals(FTDISerialDevice.FTDI_LATENCY_TIMER_DEFAULT, serialDevice.getLatencyTimer());
+    }
+
+    private long medianRoundTrip() {
+        byte[] frame = new byte[FRAME_SIZE];
+        byte[] received = new byte[FRAME_SIZE];
+        byte[] chunk = new byte[62]; // One full speed packet without its status bytes
+        long[] times = new long[ROUND_TRIPS];
+
+        for (int i = 0; i < ROUND_TRIPS; i++) {
+            Arrays.fill(frame, (byte) i);
+            long start = System.nanoTime();
+            assertEquals(FRAME_SIZE, serialDevice.syncWrite(frame, TIMEOUT));
+            int total = 0;
+            while (total < FRAME_SIZE) {
+                int n = serialDevice.syncRead(chunk, TIMEOUT);
+                assertTrue("Loopback timed out", n > 0);
+                int copied = Math.min(n, FRAME_SIZE - total);
+                System.arraycopy(chunk, 0, received, total, copied);
+                total += copied;
+            }
+            times[i] = System.nanoTime() - start;
+            assertTrue(Arrays.equals(frame, received));
+        }
+        Arrays.sort(times);
+        return times[ROUND_TRIPS / 2];
+    }
+}
@@ -0,0 +1,102 @@
+package com.perpule.serialcommunication.usbserial;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Time taken to strip the FTDI status bytes of a full read buffer, by FTDIPacketStripper and by the byte by byte copy
+ * it replaced. Runs on the device so the numbers reflect its runtime.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FTDIPacketStripperBenchmark {
+    private static final String TAG = FTDIPacketStripperBenchmark.class.getSimpleName();
+    private static final int PACKET_SIZE = 64;
+    private static final int ITERATIONS = 20000;
+
+    @Test
+    public void strip_againstLegacyAdaptArray() {
+        byte[] ftdiData = ftdiData(SerialBuffer.DEFAULT_READ_BUFFER_SIZE);
+        byte[] dst = new byte[ftdiData.length];
+
+        int length = FTDIPacketStripper.strip(ftdiData, 0, ftdiData.length, dst, 0, PACKET_SIZE);
+        assertArrayEquals(legacyAdaptArray(ftdiData), Arrays.copyOf(dst, length));
+
+        long sink = 0;
+        for (int i = 0; i < ITERATIONS; i++) { // Warm up both
+            sink += legacyAdaptArray(ftdiData).length;
+            sink += FTDIPacketStripper.strip(ftdiData, 0, ftdiData.length, dst, 0, PACKET_SIZE);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            sink += legacyAdaptArray(ftdiData).length;
+        long legacy = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            sink += FTDIPacketStripper.strip(ftdiData, 0, ftdiData.length, dst, 0, PACKET_SIZE);
+        long stripper = System.nanoTime() - start;
+
+        Log.i(TAG, String.format("FTDI header stripping, %d bytes: legacy %d ns/op, stripper %d ns/op (%d)",
+                ftdiData.length, legacy / ITERATIONS, stripper / ITERATIONS, sink));
+    }
+
+    /*
+     * Status bytes 0x01 0x60 at the start of each packet followed by a running counter
+     */
+    private static byte[] ftdiData(int length) {
+        byte[] data = new byte[length];
+        int counter = 0;
+        for (int i = 0; i < length; i++) {
+            if (i % PACKET_SIZE == 0)
+                data[i] = 0x01;
+            else if (i % PACKET_SIZE == 1)
+                data[i] = 0x60;
+            else
+                data[i] = (byte) counter++;
+        }
+        return data;
+    }
+
+    /*
+     * FTDIUtilities.adaptArray and copyData as they were before FTDIPacketStripper
+     */
+    private static byte[] legacyAdaptArray(byte[] ftdiData) {
+        int length = ftdiData.length;
+        if (length > 64) {
+            int n = 1;
+            int p = 64;
+            while (p < length) {
+                n++;
+                p = n * 64;
+            }
+            int realLength = length - n * 2;
+            byte[] data = new byte[realLength];
+            int i = 0;
+            int j = 0;
+            while (i <= ftdiData.length - 1) {
+                if (i != 0 && i != 1) {
+                    if (i % 64 == 0 && i >= 64) {
+                        i += 2;
+                    } else {
+                        data[j] = ftdiData[i];
+                        i++;
+                        j++;
+                    }
+                } else {
+                    i++;
+                }
+            }
+            return data;
+        } else {
+            return Arrays.copyOfRange(ftdiData, 2, length);
+        }
+    }
+}
@@ -15,6 +15,7 @@ import android.os.IBinder;
 import android.util.Log;
 
 import com.perpule.serialcommunication.usbserial.CDCSerialDevice;
+import com.perpule.serialcommunication.usbserial.SerialConfig;
 import com.perpule.serialcommunication.usbserial.UsbSerialDevice;
 import com.perpule.serialcommunication.usbserial.UsbSerialInterface;
 
@@ -49,12 +50,17 @@ public class UsbService extends Service {
     private UsbDeviceConnection connection;
     private UsbSerialDevice serialPort;
     private UsbServiceReadCallBack usbServiceReadCallBack;
-    private int parity;
+    private volatile SerialConfig serialConfig = SerialConfig.DEFAULT.withBaudRate(BAUD_RATE);
 
     private boolean serialPortConnected;
 
+    /*
+     * Switches the parity of an open port right away, only the line settings that change are sent to the device
+     */
     public void setParity(int parity) {
-        this.parity = parity;
+        serialConfig = serialConfig.withParity(parity);
+        if (serialPortConnected)
+            serialPort.configure(serialConfig);
     }
 
     public void startThread() {
@@ -305,11 +311,7 @@ public class UsbService extends Service {
             if (serialPort != null) {
                 if (serialPort.open()) {
                     serialPortConnected = true;
-                    serialPort.setBaudRate(BAUD_RATE);
-                    serialPort.setDataBits(UsbSerialInterface.DATA_BITS_8);
-                    serialPort.setStopBits(UsbSerialInterface.STOP_BITS_1);
-                    serialPort.setParity(parity);
-                    serialPort.setFlowControl(UsbSerialInterface.FLOW_CONTROL_OFF);
+                    serialPort.configure(serialConfig);
                     serialPort.read(mCallback);
                     serialPort.getCTS(ctsCallback);
                     serialPort.getDSR(dsrCallback);
@@ -47,6 +47,8 @@ public class CDCSerialDevice extends UsbSerialDevice {
     CDCSerialDevice(UsbDevice device, UsbDeviceConnection connection, int iface) {
         super(device, connection);
         mInterface = device.getInterface(iface >= 0 ? iface : findFirstCDC(device));
+        // Some CDC firmwares hold data back until a transfer ends with a short packet
+        setZeroLengthPackets(true);
     }
 
     @Override
@@ -85,9 +87,10 @@ public class CDCSerialDevice extends UsbSerialDevice {
 
     @Override
     public void close() {
-        setControlCommand(CDC_SET_CONTROL_LINE_STATE, CDC_CONTROL_LINE_OFF, null);
+        // Queued data is sent before the control lines drop
         killWorkingThread();
         killWriteThread();
+        setControlCommand(CDC_SET_CONTROL_LINE_STATE, CDC_CONTROL_LINE_OFF, null);
         connection.releaseInterface(mInterface);
         connection.close();
     }
@@ -113,6 +116,8 @@ public class CDCSerialDevice extends UsbSerialDevice {
 
     @Override
     public void setBaudRate(int baudRate) {
+        invalidateConfig();
+        onBaudRateChanged(baudRate);
         byte[] data = getLineCoding();
 
         data[0] = (byte) (baudRate & 0xff);
@@ -125,6 +130,7 @@ public class CDCSerialDevice extends UsbSerialDevice {
 
     @Override
     public void setDataBits(int dataBits) {
+        invalidateConfig();
         byte[] data = getLineCoding();
         switch (dataBits) {
             case UsbSerialInterface.DATA_BITS_5:
@@ -149,6 +155,7 @@ public class CDCSerialDevice extends UsbSerialDevice {
 
     @Override
     public void setStopBits(int stopBits) {
+        invalidateConfig();
         byte[] data = getLineCoding();
         switch (stopBits) {
             case UsbSerialInterface.STOP_BITS_1:
@@ -171,6 +178,7 @@ public class CDCSerialDevice extends UsbSerialDevice {
 
     @Override
     public void setParity(int parity) {
+        invalidateConfig();
         byte[] data = getLineCoding();
         switch (parity) {
             case UsbSerialInterface.PARITY_NONE:
@@ -202,6 +210,26 @@ public class CDCSerialDevice extends UsbSerialDevice {
 
     }
 
+    @Override
+    boolean applyConfig(SerialConfig current, SerialConfig config) {
+        // One SET_LINE_CODING carries the whole line coding, no need to read it back first
+        if (current == null || current.getBaudRate() != config.getBaudRate() || config.frameDiffers(current)) {
+            int baudRate = config.getBaudRate();
+            byte[] data = new byte[]{
+                    (byte) (baudRate & 0xff),
+                    (byte) (baudRate >> 8 & 0xff),
+                    (byte) (baudRate >> 16 & 0xff),
+                    (byte) (baudRate >> 24 & 0xff),
+                    (byte) config.getStopBitsCode(),
+                    (byte) config.getParity(),
+                    (byte) config.getDataBits()
+            };
+            if (setControlCommand(CDC_SET_LINE_CODING, 0, data) < 0)
+                return false;
+        }
+        return true; // Flow control is not supported
+    }
+
     @Override
     public void setRTS(boolean state) {
         //TODO
@@ -265,6 +293,7 @@ public class CDCSerialDevice extends UsbSerialDevice {
         }
 
         // Default Setup
+        invalidateConfig();
         setControlCommand(CDC_SET_LINE_CODING, 0, getInitialLineCoding());
         setControlCommand(CDC_SET_CONTROL_LINE_STATE, CDC_CONTROL_LINE_ON, null);
 
@@ -0,0 +1,169 @@
+package com.perpule.serialcommunication.usbserial;
+
+/**
+ * Register values of the CH340/CH341 line settings, computed as the Linux ch341 driver does.
+ *
+ * The baud rate comes from a 48 MHz clock divided by a prescaler and an 8 bit divisor, both written at once to
+ * registers 0x12 (prescaler) and 0x13 (divisor). Data bits, stop bits and parity share the line control register 0x18.
+ */
+final class CH34xRegisters {
+    private static final int CLOCK_RATE = 48000000;
+
+    static final int MIN_BAUD_RATE = (CLOCK_RATE + clockDivider(0, 0) * 256 - 1) / (clockDivider(0, 0) * 256); // 46
+    static final int MAX_BAUD_RATE = CLOCK_RATE / (clockDivider(3, 0) * 2); // 3000000
+
+    // Lowest rate each prescaler reaches with a divisor below 512
+    private static final int[] MIN_RATES = {
+            CLOCK_RATE / (clockDivider(0, 1) * 512),
+            CLOCK_RATE / (clockDivider(1, 1) * 512),
+            CLOCK_RATE / (clockDivider(2, 1) * 512),
+            CLOCK_RATE / (clockDivider(3, 1) * 512)
+    };
+
+    // Line control register
+    static final int LCR_ENABLE_RX = 0x80;
+    static final int LCR_ENABLE_TX = 0x40;
+    static final int LCR_MARK_SPACE = 0x20;
+    static final int LCR_PAR_EVEN = 0x10;
+    static final int LCR_ENABLE_PAR = 0x08;
+    static final int LCR_STOP_BITS_2 = 0x04;
+    static final int LCR_CS8 = 0x03;
+    static final int LCR_CS7 = 0x02;
+    static final int LCR_CS6 = 0x01;
+    static final int LCR_CS5 = 0x00;
+
+    private static final int LCR_CS_MASK = 0x03;
+    private static final int LCR_PARITY_MASK = LCR_MARK_SPACE | LCR_PAR_EVEN | LCR_ENABLE_PAR;
+
+    static final int LCR_DEFAULT = LCR_ENABLE_RX | LCR_ENABLE_TX | LCR_CS8; // 8N1
+
+    // Chips after this version send received data without waiting for a full packet when the divisor has bit 7 set,
+    // older ones treat the bit differently
+    static final int VERSION_NO_BUFFERING = 0x27;
+    static final int DIVISOR_NO_BUFFERING = 0x80;
+
+    // Chips before this version have no line control register, they are stuck at 8N1 (as in the Linux ch341 driver)
+    static final int VERSION_LCR = 0x30;
+
+    private CH34xRegisters() {
+    }
+
+    private static int clockDivider(int prescaler, int factor) {
+        return 1 << (12 - 3 * prescaler - factor);
+    }
+
+    /*
+     * Prescaler and divisor register value for baudRate, clamped to the supported range:
+     * (0x100 - divisor) << 8 | factor << 2 | prescaler
+     */
+    static int getDivisor(int baudRate) {
+        int speed = Math.max(MIN_BAUD_RATE, Math.min(MAX_BAUD_RATE, baudRate));
+
+        // Highest base clock (factor 1) giving a divisor strictly below 512
+        int factor = 1;
+        int prescaler = 3;
+        while (prescaler > 0 && speed <= MIN_RATES[prescaler])
+            prescaler--;
+
+        int clockDivider = clockDivider(prescaler, factor);
+        int divisor = CLOCK_RATE / (clockDivider * speed);
+
+        // Halve the base clock when the divisor does not fit
+        if (divisor < 9 || divisor > 255) {
+            divisor /= 2;
+            clockDivider *= 2;
+            factor = 0;
+        }
+
+        // Next divisor if its rate is closer, scaled up to avoid rounding errors at low rates
+        if (16L * CLOCK_RATE / (clockDivider * divisor) - 16L * speed
+                >= 16L * speed - 16L * CLOCK_RATE / (clockDivider * (divisor + 1)))
+            divisor++;
+
+        // The lower base clock makes the receiver more tolerant, use it when the divisor allows
+        if (factor == 1 && divisor % 2 == 0) {
+            divisor /= 2;
+            factor = 0;
+        }
+
+        return (0x100 - divisor) << 8 | factor << 2 | prescaler;
+    }
+
+    /*
+     * Register value for baudRate on a chip of the given version, read by CH341_REQ_READ_VERSION
+     */
+    static int getDivisor(int baudRate, int version) {
+        int value = getDivisor(baudRate);
+        return version > VERSION_NO_BUFFERING ? value | DIVISOR_NO_BUFFERING : value;
+    }
+
+    static boolean hasLineControl(int version) {
+        return version >= VERSION_LCR;
+    }
+
+    /*
+     * Baud rate actually produced by a value of getDivisor()
+     */
+    static int getBaudRate(int divisorValue) {
+        int prescaler = divisorValue & 0x03;
+        int factor = (divisorValue >> 2) & 0x01;
+        int divisor = 0x100 - ((divisorValue >> 8) & 0xff);
+        return CLOCK_RATE / (clockDivider(prescaler, factor) * divisor);
+    }
+
+    static int setDataBits(int lcr, int dataBits) {
+        int cs;
+        switch (dataBits) {
+            case UsbSerialInterface.DATA_BITS_5:
+                cs = LCR_CS5;
+                break;
+            case UsbSerialInterface.DATA_BITS_6:
+                cs = LCR_CS6;
+                break;
+            case UsbSerialInterface.DATA_BITS_7:
+                cs = LCR_CS7;
+                break;
+            default:
+                cs = LCR_CS8;
+                break;
+        }
+        return (lcr & ~LCR_CS_MASK) | cs;
+    }
+
+    /*
+     * The chip has no 1.5 stop bits setting, it sends 2
+     */
+    static int setStopBits(int lcr, int stopBits) {
+        if (stopBits == UsbSerialInterface.STOP_BITS_1)
+            return lcr & ~LCR_STOP_BITS_2;
+        return lcr | LCR_STOP_BITS_2;
+    }
+
+    static int setParity(int lcr, int parity) {
+        int bits;
+        switch (parity) {
+            case UsbSerialInterface.PARITY_ODD:
+                bits = LCR_ENABLE_PAR;
+                break;
+            case UsbSerialInterface.PARITY_EVEN:
+                bits = LCR_ENABLE_PAR | LCR_PAR_EVEN;
+                break;
+            case UsbSerialInterface.PARITY_MARK:
+                bits = LCR_ENABLE_PAR | LCR_MARK_SPACE;
+                break;
+            case UsbSerialInterface.PARITY_SPACE:
+                bits = LCR_ENABLE_PAR | LCR_MARK_SPACE | LCR_PAR_EVEN;
+                break;
+            default:
+                bits = 0;
+                break;
+        }
+        return (lcr & ~LCR_PARITY_MASK) | bits;
+    }
+
+    static int getLineControl(SerialConfig config) {
+        int lcr = setDataBits(LCR_DEFAULT, config.getDataBits());
+        lcr = setStopBits(lcr, config.getStopBits());
+        return setParity(lcr, config.getParity());
+    }
+}
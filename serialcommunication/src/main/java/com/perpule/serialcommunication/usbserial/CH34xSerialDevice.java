@@ -14,8 +14,6 @@ import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbRequest;
 
-import java.util.concurrent.atomic.AtomicBoolean;
-
 public class CH34xSerialDevice extends UsbSerialDevice {
 
     private static final int REQTYPE_HOST_FROM_DEVICE = UsbConstants.USB_TYPE_VENDOR | UsbConstants.USB_DIR_IN;
@@ -23,13 +21,11 @@ public class CH34xSerialDevice extends UsbSerialDevice {
 
     private static final int CH341_REQ_WRITE_REG = 0x9A;
     private static final int CH341_REQ_READ_REG = 0x95;
+    private static final int CH341_REQ_READ_VERSION = 0x5F;
 
-    // Parity values
-    private static final int CH34X_PARITY_NONE = 0xc3;
-    private static final int CH34X_PARITY_ODD = 0xcb;
-    private static final int CH34X_PARITY_EVEN = 0xdb;
-    private static final int CH34X_PARITY_MARK = 0xeb;
-    private static final int CH34X_PARITY_SPACE = 0xfb;
+    // Register pairs written by CH341_REQ_WRITE_REG, the index carries both values
+    private static final int CH341_REG_DIVISOR_PRESCALER = 0x1312;
+    private static final int CH341_REG_LCR2_LCR = 0x2518;
 
     //Flow control values
     private static final int CH34X_FLOW_CONTROL_NONE = 0x0000;
@@ -42,7 +38,13 @@ public class CH34xSerialDevice extends UsbSerialDevice {
     private UsbEndpoint outEndpoint;
     private UsbRequest requestIN;
 
-    private FlowControlThread flowControlThread;
+    // Status poll interval bounds in ms, polls speed up to the minimum while writes are pending or lines change
+    private static final int DEFAULT_STATUS_POLL_MIN = 4;
+    private static final int DEFAULT_STATUS_POLL_MAX = 320;
+
+    private StatusPoller statusPoller;
+    private int statusPollMin = DEFAULT_STATUS_POLL_MIN;
+    private int statusPollMax = DEFAULT_STATUS_POLL_MAX;
     private UsbCTSCallback ctsCallback;
     private UsbDSRCallback dsrCallback;
     private boolean rtsCtsEnabled;
@@ -51,6 +53,8 @@ public class CH34xSerialDevice extends UsbSerialDevice {
     private boolean rts = false;
     private boolean ctsState = false;
     private boolean dsrState = false;
+    private int lcr = CH34xRegisters.LCR_DEFAULT;
+    private int version; // Read during init, decides how the divisor and line control registers are written
 
     public CH34xSerialDevice(UsbDevice device, UsbDeviceConnection connection) {
         super(device, connection);
@@ -75,8 +79,8 @@ public class CH34xSerialDevice extends UsbSerialDevice {
             restartWorkingThread();
             restartWriteThread();
 
-            // Create Flow control thread but it will only be started if necessary
-            createFlowControlThread();
+            // Status polling only starts once something listens to it
+            createStatusPoller();
 
             // Pass references to the threads
             setThreadsParams(requestIN, outEndpoint);
@@ -93,7 +97,7 @@ public class CH34xSerialDevice extends UsbSerialDevice {
     public void close() {
         killWorkingThread();
         killWriteThread();
-        stopFlowControlThread();
+        stopStatusPoller();
         connection.releaseInterface(mInterface);
     }
 
@@ -101,8 +105,8 @@ public class CH34xSerialDevice extends UsbSerialDevice {
     public boolean syncOpen() {
         boolean ret = openCH34X();
         if (ret) {
-            // Create Flow control thread but it will only be started if necessary
-            createFlowControlThread();
+            // Status polling only starts once something listens to it
+            createStatusPoller();
             setSyncParams(inEndpoint, outEndpoint);
             asyncMode = false;
             return true;
@@ -113,66 +117,77 @@ public class CH34xSerialDevice extends UsbSerialDevice {
 
     @Override
     public void syncClose() {
-        stopFlowControlThread();
+        stopStatusPoller();
         connection.releaseInterface(mInterface);
     }
 
     @Override
     public void setBaudRate(int baudRate) {
+        invalidateConfig();
+        onBaudRateChanged(baudRate);
+        setCh340xBaudRate(baudRate);
     }
 
     @Override
     public void setDataBits(int dataBits) {
+        invalidateConfig();
+        setCh340xLcr(CH34xRegisters.setDataBits(lcr, dataBits));
     }
 
     @Override
     public void setStopBits(int stopBits) {
+        invalidateConfig();
+        setCh340xLcr(CH34xRegisters.setStopBits(lcr, stopBits));
     }
 
     @Override
     public void setParity(int parity) {
-        switch (parity) {
-            case UsbSerialInterface.PARITY_NONE:
-                setCh340xParity(CH34X_PARITY_NONE);
-                break;
-            case UsbSerialInterface.PARITY_ODD:
-                setCh340xParity(CH34X_PARITY_ODD);
-                break;
-            case UsbSerialInterface.PARITY_EVEN:
-                setCh340xParity(CH34X_PARITY_EVEN);
-                break;
-            case UsbSerialInterface.PARITY_MARK:
-                setCh340xParity(CH34X_PARITY_MARK);
-                break;
-            case UsbSerialInterface.PARITY_SPACE:
-                setCh340xParity(CH34X_PARITY_SPACE);
-                break;
-            default:
-                break;
+        invalidateConfig();
+        setCh340xLcr(CH34xRegisters.setParity(lcr, parity));
+    }
+
+    @Override
+    boolean applyConfig(SerialConfig current, SerialConfig config) {
+        if (current == null || current.getBaudRate() != config.getBaudRate()) {
+            if (setCh340xBaudRate(config.getBaudRate()) < 0)
+                return false;
         }
+
+        // Data bits, stop bits and parity share the line control register
+        int newLcr = CH34xRegisters.getLineControl(config);
+        if (current == null || newLcr != lcr) {
+            if (setCh340xLcr(newLcr) < 0)
+                return false;
+        }
+
+        if (current == null || current.getFlowControl() != config.getFlowControl())
+            setFlowControl(config.getFlowControl());
+        return true;
     }
 
     @Override
     public void setFlowControl(int flowControl) {
+        invalidateConfig();
         switch (flowControl) {
             case UsbSerialInterface.FLOW_CONTROL_OFF:
                 rtsCtsEnabled = false;
                 dtrDsrEnabled = false;
                 setCh340xFlow(CH34X_FLOW_CONTROL_NONE);
+                updateStatusPolling();
                 break;
             case UsbSerialInterface.FLOW_CONTROL_RTS_CTS:
                 rtsCtsEnabled = true;
                 dtrDsrEnabled = false;
                 setCh340xFlow(CH34X_FLOW_CONTROL_RTS_CTS);
                 ctsState = checkCTS();
-                startFlowControlThread();
+                updateStatusPolling();
                 break;
             case UsbSerialInterface.FLOW_CONTROL_DSR_DTR:
                 rtsCtsEnabled = false;
                 dtrDsrEnabled = true;
                 setCh340xFlow(CH34X_FLOW_CONTROL_DSR_DTR);
                 dsrState = checkDSR();
-                startFlowControlThread();
+                updateStatusPolling();
                 break;
             default:
                 break;
@@ -194,11 +209,13 @@ public class CH34xSerialDevice extends UsbSerialDevice {
     @Override
     public void getCTS(UsbCTSCallback ctsCallback) {
         this.ctsCallback = ctsCallback;
+        updateStatusPolling();
     }
 
     @Override
     public void getDSR(UsbDSRCallback dsrCallback) {
         this.dsrCallback = dsrCallback;
+        updateStatusPolling();
     }
 
     @Override
@@ -239,6 +256,7 @@ public class CH34xSerialDevice extends UsbSerialDevice {
             }
         }
 
+        invalidateConfig();
         return init() == 0;
     }
 
@@ -247,6 +265,12 @@ public class CH34xSerialDevice extends UsbSerialDevice {
             Init the device at 9600 bauds
          */
 
+        byte[] versionBuffer = new byte[2];
+        if (setControlCommandIn(CH341_REQ_READ_VERSION, 0, 0, versionBuffer) < 1) {
+            return -1;
+        }
+        version = versionBuffer[0] & 0xff;
+
         if (setControlCommandOut(0xa1, 0xc29c, 0xb2b9, null) < 0) {
             return -1;
         }
@@ -266,7 +290,7 @@ public class CH34xSerialDevice extends UsbSerialDevice {
             return -1;
         }
 
-        if (setControlCommandOut(0x9a, 0x1312, 0xb282, null) < 0) {
+        if (setCh340xBaudRate(9600) < 0) {
             return -1;
         }
 
@@ -274,7 +298,7 @@ public class CH34xSerialDevice extends UsbSerialDevice {
             return -1;
         }
 
-        if (setControlCommandOut(0x9a, 0x2518, 0x00c3, null) < 0) {
+        if (setCh340xLcr(CH34xRegisters.LCR_DEFAULT) < 0) {
             return -1;
         }
 
@@ -288,13 +312,21 @@ public class CH34xSerialDevice extends UsbSerialDevice {
         return 0;
     }
 
-    private int setCh340xParity(int indexParity) {
-        if (setControlCommandOut(CH341_REQ_WRITE_REG, 0x2518, indexParity, null) < 0)
-            return -1;
-        if (checkState("set_parity", 0x95, 0x0706, new int[]{0x9f, 0xee}) == -1)
+    private int setCh340xBaudRate(int baudRate) {
+        int divisor = CH34xRegisters.getDivisor(baudRate, version);
+        if (setControlCommandOut(CH341_REQ_WRITE_REG, CH341_REG_DIVISOR_PRESCALER, divisor, null) < 0)
             return -1;
-        if (setControlCommandOut(CH341_REQ_WRITE_REG, 0x2727, 0, null) < 0)
+        return 0;
+    }
+
+    /*
+     * LCR2 is always written as zero. Chips without the register keep 8N1, the write is skipped rather than failed
+     */
+    private int setCh340xLcr(int newLcr) {
+        if (CH34xRegisters.hasLineControl(version)
+                && setControlCommandOut(CH341_REQ_WRITE_REG, CH341_REG_LCR2_LCR, newLcr, null) < 0)
             return -1;
+        lcr = newLcr;
         return 0;
     }
 
@@ -318,25 +350,27 @@ public class CH34xSerialDevice extends UsbSerialDevice {
     }
 
     private boolean checkCTS() {
-        byte[] buffer = new byte[2];
-        int ret = setControlCommandIn(CH341_REQ_READ_REG, 0x0706, 0, buffer);
-
-        if (ret != 2) {
-            return false;
-        }
-
-        return (buffer[0] & 0x01) == 0x00;
+        int status = readLineStatus();
+        return status >= 0 && (status & 0x01) == 0x00;
     }
 
     private boolean checkDSR() {
+        int status = readLineStatus();
+        return status >= 0 && (status & 0x02) == 0x00;
+    }
+
+    /*
+     * CTS and DSR come from the same register, one transfer serves both. Returns -1 on failure
+     */
+    private int readLineStatus() {
         byte[] buffer = new byte[2];
         int ret = setControlCommandIn(CH341_REQ_READ_REG, 0x0706, 0, buffer);
 
         if (ret != 2) {
-            return false;
+            return -1;
         }
 
-        return (buffer[0] & 0x02) == 0x00;
+        return buffer[0] & 0xff;
     }
 
     private int writeHandshakeByte() {
@@ -362,93 +396,137 @@ public class CH34xSerialDevice extends UsbSerialDevice {
         return connection.controlTransfer(REQTYPE_HOST_FROM_DEVICE, request, value, index, data, dataLength, USB_TIMEOUT);
     }
 
-    private void createFlowControlThread() {
-        flowControlThread = new FlowControlThread();
-    }
-
-    private void startFlowControlThread() {
-        if (!flowControlThread.isAlive())
-            flowControlThread.start();
+    /**
+     * Bounds of the adaptive status poll interval. Polls run at minInterval while writes are pending or
+     * right after a line change and back off exponentially up to maxInterval when idle
+     *
+     * @param minInterval fastest poll interval in milliseconds
+     * @param maxInterval slowest poll interval in milliseconds
+     */
+    public void setStatusPollInterval(int minInterval, int maxInterval) {
+        if (minInterval < 1 || maxInterval < minInterval)
+            throw new IllegalArgumentException("Poll interval bounds must satisfy 1 <= min <= max");
+        statusPollMin = minInterval;
+        statusPollMax = maxInterval;
+        StatusPoller poller = statusPoller;
+        if (poller != null)
+            poller.setIntervalBounds(minInterval, maxInterval);
+    }
+
+    /**
+     * @return status polls issued since the device was opened
+     */
+    public long getStatusPollCount() {
+        StatusPoller poller = statusPoller;
+        return poller != null ? poller.getPolls() : 0;
+    }
+
+    /**
+     * @return polls that found a line change since the device was opened
+     */
+    public long getStatusChangeCount() {
+        StatusPoller poller = statusPoller;
+        return poller != null ? poller.getChanges() : 0;
+    }
+
+    private void createStatusPoller() {
+        statusPoller = new StatusPoller();
+        updateStatusPolling(); // Callbacks may have been set before opening
+    }
+
+    /*
+     * Polls are skipped entirely while nothing is listening
+     */
+    private void updateStatusPolling() {
+        StatusPoller poller = statusPoller;
+        if (poller == null)
+            return;
+
+        if (poller.needsLineStatus())
+            SerialPollScheduler.getInstance().schedule(poller);
+        else
+            SerialPollScheduler.getInstance().cancel(poller);
+    }
+
+    /*
+     * Queued writes bring the poller back to its fastest cadence
+     */
+    @Override
+    void onWriteQueued() {
+        StatusPoller poller = statusPoller;
+        if (poller != null)
+            SerialPollScheduler.getInstance().boost(poller);
     }
 
-    private void stopFlowControlThread() {
-        if (flowControlThread != null) {
-            flowControlThread.stopThread();
-            flowControlThread = null;
+    private void stopStatusPoller() {
+        if (statusPoller != null) {
+            SerialPollScheduler.getInstance().cancel(statusPoller);
+            statusPoller = null;
         }
     }
 
-    private class FlowControlThread extends Thread {
-        private long time = 100; // 100ms
+    /*
+     * Polls the flow signals on the shared scheduler, a single register read per poll
+     */
+    private class StatusPoller extends SerialPollScheduler.PollTask {
+        private boolean firstTime = true;
 
-        private boolean firstTime;
+        StatusPoller() {
+            super(statusPollMin, statusPollMax);
+        }
 
-        private AtomicBoolean keep;
+        @Override
+        boolean isBusy() {
+            return getQueuedBytes() > 0;
+        }
 
-        FlowControlThread() {
-            keep = new AtomicBoolean(true);
-            firstTime = true;
+        boolean needsLineStatus() {
+            return (rtsCtsEnabled && ctsCallback != null) || (dtrDsrEnabled && dsrCallback != null);
         }
 
         @Override
-        public void run() {
-            while (keep.get()) {
-                if (!firstTime) {
-                    // Check CTS status
-                    if (rtsCtsEnabled) {
-                        boolean cts = pollForCTS();
-                        if (ctsState != cts) {
-                            ctsState = !ctsState;
-                            if (ctsCallback != null)
-                                ctsCallback.onCTSChanged(ctsState);
-                        }
-                    }
-
-                    // Check DSR status
-                    if (dtrDsrEnabled) {
-                        boolean dsr = pollForDSR();
-                        if (dsrState != dsr) {
-                            dsrState = !dsrState;
-                            if (dsrCallback != null)
-                                dsrCallback.onDSRChanged(dsrState);
-                        }
-                    }
-                } else {
-                    if (rtsCtsEnabled && ctsCallback != null)
-                        ctsCallback.onCTSChanged(ctsState);
+        boolean poll() {
+            if (firstTime) {
+                if (rtsCtsEnabled && ctsCallback != null)
+                    ctsCallback.onCTSChanged(ctsState);
 
-                    if (dtrDsrEnabled && dsrCallback != null)
-                        dsrCallback.onDSRChanged(dsrState);
+                if (dtrDsrEnabled && dsrCallback != null)
+                    dsrCallback.onDSRChanged(dsrState);
 
-                    firstTime = false;
-                }
+                firstTime = false;
+                return false;
             }
-        }
-
-        void stopThread() {
-            keep.set(false);
-        }
 
-        boolean pollForCTS() {
-            synchronized (this) {
-                try {
-                    wait(time);
-                } catch (InterruptedException ignored) {
+            if (!needsLineStatus())
+                return false;
+            int status = readLineStatus();
+            if (status < 0)
+                return false;
+
+            boolean changed = false;
+
+            // Check CTS status
+            if (rtsCtsEnabled) {
+                boolean cts = (status & 0x01) == 0x00;
+                if (ctsState != cts) {
+                    changed = true;
+                    ctsState = !ctsState;
+                    if (ctsCallback != null)
+                        ctsCallback.onCTSChanged(ctsState);
                 }
             }
 
-            return checkCTS();
-        }
-
-        boolean pollForDSR() {
-            synchronized (this) {
-                try {
-                    wait(time);
-                } catch (InterruptedException ignored) {
+            // Check DSR status
+            if (dtrDsrEnabled) {
+                boolean dsr = (status & 0x02) == 0x00;
+                if (dsrState != dsr) {
+                    changed = true;
+                    dsrState = !dsrState;
+                    if (dsrCallback != null)
+                        dsrCallback.onDSRChanged(dsrState);
                 }
             }
-
-            return checkDSR();
+            return changed;
         }
     }
 }
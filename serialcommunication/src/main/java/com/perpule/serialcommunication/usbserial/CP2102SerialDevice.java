@@ -7,8 +7,6 @@ import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbRequest;
 
-import java.util.concurrent.atomic.AtomicBoolean;
-
 public class CP2102SerialDevice extends UsbSerialDevice
 {
     private static final String CLASS_ID = CP2102SerialDevice.class.getSimpleName();
@@ -69,7 +67,13 @@ public class CP2102SerialDevice extends UsbSerialDevice
     private UsbEndpoint outEndpoint;
     private UsbRequest requestIN;
 
-    private FlowControlThread flowControlThread;
+    // Status poll interval bounds in ms, polls speed up to the minimum while writes are pending or lines change
+    private static final int DEFAULT_STATUS_POLL_MIN = 4;
+    private static final int DEFAULT_STATUS_POLL_MAX = 320;
+
+    private StatusPoller statusPoller;
+    private int statusPollMin = DEFAULT_STATUS_POLL_MIN;
+    private int statusPollMax = DEFAULT_STATUS_POLL_MAX;
 
     // COMM_STATUS callbacks
     private UsbParityCallback parityCallback;
@@ -107,8 +111,8 @@ public class CP2102SerialDevice extends UsbSerialDevice
             restartWorkingThread();
             restartWriteThread();
 
-            // Create Flow control thread but it will only be started if necessary
-            createFlowControlThread();
+            // Status polling only starts once something listens to it
+            createStatusPoller();
 
             // Pass references to the threads
             setThreadsParams(requestIN, outEndpoint);
@@ -125,10 +129,11 @@ public class CP2102SerialDevice extends UsbSerialDevice
     @Override
     public void close()
     {
-        setControlCommand(CP210x_IFC_ENABLE, CP210x_UART_DISABLE, null);
+        // Queued data is sent before the UART goes down
         killWorkingThread();
         killWriteThread();
-        stopFlowControlThread();
+        stopStatusPoller();
+        setControlCommand(CP210x_IFC_ENABLE, CP210x_UART_DISABLE, null);
         connection.releaseInterface(mInterface);
     }
 
@@ -139,7 +144,7 @@ public class CP2102SerialDevice extends UsbSerialDevice
         if(ret)
         {
             // Create Flow control thread but it will only be started if necessary
-            createFlowControlThread();
+            createStatusPoller();
             setSyncParams(inEndpoint, outEndpoint);
             asyncMode = false;
             return true;
@@ -153,12 +158,19 @@ public class CP2102SerialDevice extends UsbSerialDevice
     public void syncClose()
     {
         setControlCommand(CP210x_IFC_ENABLE, CP210x_UART_DISABLE, null);
-        stopFlowControlThread();
+        stopStatusPoller();
         connection.releaseInterface(mInterface);
     }
 
     @Override
     public void setBaudRate(int baudRate)
+    {
+        invalidateConfig();
+        onBaudRateChanged(baudRate);
+        sendBaudRate(baudRate);
+    }
+
+    private int sendBaudRate(int baudRate)
     {
         byte[] data = new byte[] {
                 (byte) (baudRate & 0xff),
@@ -166,12 +178,13 @@ public class CP2102SerialDevice extends UsbSerialDevice
                 (byte) (baudRate >> 16 & 0xff),
                 (byte) (baudRate >> 24 & 0xff)
         };
-        setControlCommand(CP210x_SET_BAUDRATE, 0, data);
+        return setControlCommand(CP210x_SET_BAUDRATE, 0, data);
     }
 
     @Override
     public void setDataBits(int dataBits)
     {
+        invalidateConfig();
         byte[] data = getCTL();
         switch(dataBits)
         {
@@ -198,6 +211,7 @@ public class CP2102SerialDevice extends UsbSerialDevice
     @Override
     public void setStopBits(int stopBits)
     {
+        invalidateConfig();
         byte[] data = getCTL();
         switch(stopBits)
         {
@@ -223,6 +237,7 @@ public class CP2102SerialDevice extends UsbSerialDevice
     @Override
     public void setParity(int parity)
     {
+        invalidateConfig();
         byte[] data = getCTL();
         switch(parity)
         {
@@ -266,6 +281,7 @@ public class CP2102SerialDevice extends UsbSerialDevice
     @Override
     public void setFlowControl(int flowControl)
     {
+        invalidateConfig();
         switch(flowControl)
         {
             case UsbSerialInterface.FLOW_CONTROL_OFF:
@@ -278,6 +294,7 @@ public class CP2102SerialDevice extends UsbSerialDevice
                 rtsCtsEnabled = false;
                 dtrDsrEnabled = false;
                 setControlCommand(CP210x_SET_FLOW, 0, dataOff);
+                updateStatusPolling();
                 break;
             case UsbSerialInterface.FLOW_CONTROL_RTS_CTS:
                 byte[] dataRTSCTS = new byte[]{
@@ -292,7 +309,7 @@ public class CP2102SerialDevice extends UsbSerialDevice
                 setControlCommand(CP210x_SET_MHS, CP210x_MHS_RTS_ON, null);
                 byte[] commStatusCTS = getCommStatus();
                 ctsState = (commStatusCTS[4] & 0x01) == 0x00;
-                startFlowControlThread();
+                updateStatusPolling();
                 break;
             case UsbSerialInterface.FLOW_CONTROL_DSR_DTR:
                 byte[] dataDSRDTR = new byte[]{
@@ -307,7 +324,7 @@ public class CP2102SerialDevice extends UsbSerialDevice
                 setControlCommand(CP210x_SET_MHS, CP210x_MHS_DTR_ON, null);
                 byte[] commStatusDSR = getCommStatus();
                 dsrState = (commStatusDSR[4] & 0x02) == 0x00;
-                startFlowControlThread();
+                updateStatusPolling();
                 break;
             case UsbSerialInterface.FLOW_CONTROL_XON_XOFF:
                 byte[] dataXONXOFF = new byte[]{
@@ -329,6 +346,28 @@ public class CP2102SerialDevice extends UsbSerialDevice
         }
     }
 
+    @Override
+    boolean applyConfig(SerialConfig current, SerialConfig config)
+    {
+        if(current == null || current.getBaudRate() != config.getBaudRate())
+        {
+            if(sendBaudRate(config.getBaudRate()) < 0)
+                return false;
+        }
+
+        // Word length, parity and stop bits share SET_LINE_CTL, no need to read it back first
+        if(config.frameDiffers(current))
+        {
+            int lineCtl = (config.getDataBits() << 8) | (config.getParity() << 4) | config.getStopBitsCode();
+            if(setControlCommand(CP210x_SET_LINE_CTL, lineCtl, null) < 0)
+                return false;
+        }
+
+        if(current == null || current.getFlowControl() != config.getFlowControl())
+            setFlowControl(config.getFlowControl());
+        return true;
+    }
+
     @Override
     public void setRTS(boolean state)
     {
@@ -357,158 +396,173 @@ public class CP2102SerialDevice extends UsbSerialDevice
     public void getCTS(UsbCTSCallback ctsCallback)
     {
         this.ctsCallback = ctsCallback;
+        updateStatusPolling();
     }
 
     @Override
     public void getDSR(UsbDSRCallback dsrCallback)
     {
         this.dsrCallback = dsrCallback;
+        updateStatusPolling();
     }
 
     @Override
     public void getBreak(UsbBreakCallback breakCallback)
     {
         this.breakCallback = breakCallback;
+        updateStatusPolling();
     }
 
     @Override
     public void getFrame(UsbFrameCallback frameCallback)
     {
         this.frameCallback = frameCallback;
+        updateStatusPolling();
     }
 
     @Override
     public void getOverrun(UsbOverrunCallback overrunCallback)
     {
         this.overrunCallback = overrunCallback;
+        updateStatusPolling();
     }
 
     @Override
     public void getParity(UsbParityCallback parityCallback)
     {
         this.parityCallback = parityCallback;
-        startFlowControlThread();
+        updateStatusPolling();
+    }
+
+    /**
+     * Bounds of the adaptive status poll interval. Polls run at minInterval while writes are pending or
+     * right after a line change or an error and back off exponentially up to maxInterval when idle
+     *
+     * @param minInterval fastest poll interval in milliseconds
+     * @param maxInterval slowest poll interval in milliseconds
+     */
+    public void setStatusPollInterval(int minInterval, int maxInterval)
+    {
+        if(minInterval < 1 || maxInterval < minInterval)
+            throw new IllegalArgumentException("Poll interval bounds must satisfy 1 <= min <= max");
+        statusPollMin = minInterval;
+        statusPollMax = maxInterval;
+        StatusPoller poller = statusPoller;
+        if(poller != null)
+            poller.setIntervalBounds(minInterval, maxInterval);
+    }
+
+    /**
+     * @return status polls issued since the device was opened
+     */
+    public long getStatusPollCount()
+    {
+        StatusPoller poller = statusPoller;
+        return poller != null ? poller.getPolls() : 0;
+    }
+
+    /**
+     * @return polls that found a line change or an error since the device was opened
+     */
+    public long getStatusChangeCount()
+    {
+        StatusPoller poller = statusPoller;
+        return poller != null ? poller.getChanges() : 0;
     }
 
     /*
-        Thread to check every X time if flow signals CTS or DSR have been raised
+        Polls the flow signals and the comm status on the shared scheduler. Only the transfers
+        the registered callbacks need are issued
     */
-    private class FlowControlThread extends Thread
+    private class StatusPoller extends SerialPollScheduler.PollTask
     {
-        private long time = 40; // 40ms
+        private boolean firstTime = true;
 
-        private boolean firstTime;
+        StatusPoller()
+        {
+            super(statusPollMin, statusPollMax);
+        }
 
-        private AtomicBoolean keep;
+        @Override
+        boolean isBusy()
+        {
+            return getQueuedBytes() > 0;
+        }
+
+        boolean needsModemState()
+        {
+            return (rtsCtsEnabled && ctsCallback != null) || (dtrDsrEnabled && dsrCallback != null);
+        }
 
-        public FlowControlThread()
+        boolean needsCommStatus()
         {
-            keep = new AtomicBoolean(true);
-            firstTime = true;
+            return parityCallback != null || frameCallback != null
+                    || breakCallback != null || overrunCallback != null || hasErrorEventCallback();
         }
 
         @Override
-        public void run()
+        boolean poll()
         {
-            while(keep.get())
+            if(firstTime) // Execute the callback always the first time
             {
-                if(!firstTime) // Only execute the callback when the status change
-                {
-                    byte[] modemState = pollLines();
-                    byte[] commStatus = getCommStatus();
+                if(rtsCtsEnabled && ctsCallback != null)
+                    ctsCallback.onCTSChanged(ctsState);
 
-                    // Check CTS status
-                    if(rtsCtsEnabled)
-                    {
-                        if(ctsState != ((modemState[0] & 0x10) == 0x10))
-                        {
-                            ctsState = !ctsState;
-                            if (ctsCallback != null)
-                                ctsCallback.onCTSChanged(ctsState);
-                        }
-                    }
+                if(dtrDsrEnabled && dsrCallback != null)
+                    dsrCallback.onDSRChanged(dsrState);
 
-                    // Check DSR status
-                    if(dtrDsrEnabled)
-                    {
-                        if(dsrState != ((modemState[0] & 0x20) == 0x20))
-                        {
-                            dsrState = !dsrState;
-                            if (dsrCallback != null)
-                                dsrCallback.onDSRChanged(dsrState);
-                        }
-                    }
+                firstTime = false;
+                return false;
+            }
 
-                    //Check Parity Errors
-                    if(parityCallback != null)
-                    {
-                        if((commStatus[0] & 0x10) == 0x10)
-                        {
-                            parityCallback.onParityError();
-                        }
-                    }
+            boolean changed = false;
 
-                    // Check frame error
-                    if(frameCallback != null)
-                    {
-                        if((commStatus[0] & 0x02) == 0x02)
-                        {
-                            frameCallback.onFramingError();
-                        }
-                    }
+            // Only execute the callback when the status change
+            if(needsModemState())
+            {
+                byte[] modemState = getModemState();
 
-                    // Check break interrupt
-                    if(breakCallback != null)
+                // Check CTS status
+                if(rtsCtsEnabled)
+                {
+                    if(ctsState != ((modemState[0] & 0x10) == 0x10))
                     {
-                        if((commStatus[0] & 0x01) == 0x01)
-                        {
-                            breakCallback.onBreakInterrupt();
-                        }
+                        changed = true;
+                        ctsState = !ctsState;
+                        if (ctsCallback != null)
+                            ctsCallback.onCTSChanged(ctsState);
                     }
+                }
 
-                    // Check Overrun error
-
-                    if(overrunCallback != null)
+                // Check DSR status
+                if(dtrDsrEnabled)
+                {
+                    if(dsrState != ((modemState[0] & 0x20) == 0x20))
                     {
-                        if((commStatus[0] & 0x04) == 0x04
-                                || (commStatus[0] & 0x8) == 0x08)
-                        {
-                            overrunCallback.onOverrunError();
-                        }
-
+                        changed = true;
+                        dsrState = !dsrState;
+                        if (dsrCallback != null)
+                            dsrCallback.onDSRChanged(dsrState);
                     }
-                }else // Execute the callback always the first time
-                {
-                    if(rtsCtsEnabled && ctsCallback != null)
-                        ctsCallback.onCTSChanged(ctsState);
-
-                    if(dtrDsrEnabled && dsrCallback != null)
-                        dsrCallback.onDSRChanged(dsrState);
-
-                    firstTime = false;
                 }
             }
-        }
-
-        public void stopThread()
-        {
-            keep.set(false);
-        }
 
-        private byte[] pollLines()
-        {
-            synchronized(this)
+            if(needsCommStatus())
             {
-                try
-                {
-                    wait(time);
-                } catch(InterruptedException e)
-                {
-
-                }
+                // ulErrors clears on read, a bit set on a poll is a new occurrence even if it was set on the last one
+                byte[] commStatus = getCommStatus();
+                int errors = 0;
+                if((commStatus[0] & 0x10) == 0x10)
+                    errors |= SerialLineErrors.PARITY_BIT;
+                if((commStatus[0] & 0x02) == 0x02)
+                    errors |= SerialLineErrors.FRAMING_BIT;
+                if((commStatus[0] & 0x01) == 0x01)
+                    errors |= SerialLineErrors.BREAK_BIT;
+                if((commStatus[0] & 0x04) == 0x04 || (commStatus[0] & 0x08) == 0x08)
+                    errors |= SerialLineErrors.OVERRUN_BIT;
+                changed |= lineErrors.update(errors);
             }
-
-            return getModemState();
+            return changed;
         }
     }
 
@@ -538,6 +592,7 @@ public class CP2102SerialDevice extends UsbSerialDevice
 
 
         // Default Setup
+        invalidateConfig();
         if(setControlCommand(CP210x_IFC_ENABLE, CP210x_UART_ENABLE, null) < 0)
             return false;
         setBaudRate(DEFAULT_BAUDRATE);
@@ -550,23 +605,74 @@ public class CP2102SerialDevice extends UsbSerialDevice
         return true;
     }
 
-    private void createFlowControlThread()
+    private void createStatusPoller()
+    {
+        statusPoller = new StatusPoller();
+        updateStatusPolling(); // Callbacks may have been set before opening
+    }
+
+    /*
+        Polls are skipped entirely while nothing is listening
+    */
+    private void updateStatusPolling()
+    {
+        StatusPoller poller = statusPoller;
+        if(poller == null)
+            return;
+
+        if(poller.needsModemState() || poller.needsCommStatus())
+            SerialPollScheduler.getInstance().schedule(poller);
+        else
+            SerialPollScheduler.getInstance().cancel(poller);
+    }
+
+    @Override
+    void onErrorCallbacksChanged()
     {
-        flowControlThread = new FlowControlThread();
+        updateStatusPolling();
     }
 
-    private void startFlowControlThread()
+    @Override
+    void onLineErrorEvent(int error, int count)
+    {
+        switch(error)
+        {
+            case SerialLineErrors.PARITY:
+                if(parityCallback != null)
+                    parityCallback.onParityError();
+                break;
+            case SerialLineErrors.FRAMING:
+                if(frameCallback != null)
+                    frameCallback.onFramingError();
+                break;
+            case SerialLineErrors.OVERRUN:
+                if(overrunCallback != null)
+                    overrunCallback.onOverrunError();
+                break;
+            case SerialLineErrors.BREAK:
+                if(breakCallback != null)
+                    breakCallback.onBreakInterrupt();
+                break;
+        }
+    }
+
+    /*
+        Queued writes bring the poller back to its fastest cadence
+    */
+    @Override
+    void onWriteQueued()
     {
-        if(!flowControlThread.isAlive())
-            flowControlThread.start();
+        StatusPoller poller = statusPoller;
+        if(poller != null)
+            SerialPollScheduler.getInstance().boost(poller);
     }
 
-    private void stopFlowControlThread()
+    private void stopStatusPoller()
     {
-        if(flowControlThread != null)
+        if(statusPoller != null)
         {
-            flowControlThread.stopThread();
-            flowControlThread = null;
+            SerialPollScheduler.getInstance().cancel(statusPoller);
+            statusPoller = null;
         }
     }
 
@@ -0,0 +1,206 @@
+package com.perpule.serialcommunication.usbserial;
+
+/**
+ * Baud rate divisor of an FTDI chip, computed the way libftdi and the Linux ftdi_sio driver do.
+ *
+ * Chips from the BM on divide their clock by an integer plus a fraction in eighths: a 48 MHz clock divided by 16
+ * (3 Mbaud at most), or for the H chips a 120 MHz clock divided by 10 (12 Mbaud at most). The AM only has four
+ * fractions and the SIO a fixed list of rates. The closest achievable rate is picked, {@link #getActualBaudRate()}
+ * reports it.
+ */
+final class FTDIBaudRate {
+    // Chip types, as told apart by bcdDevice and the number of interfaces
+    static final int CHIP_SIO = 0;
+    static final int CHIP_AM = 1;
+    static final int CHIP_BM = 2;
+    static final int CHIP_2232C = 3;
+    static final int CHIP_R = 4;
+    static final int CHIP_2232H = 5;
+    static final int CHIP_4232H = 6;
+    static final int CHIP_232H = 7;
+    static final int CHIP_X = 8;
+
+    private static final int C_CLK = 48000000;
+    private static final int H_CLK = 120000000;
+    private static final int H_CLK_DIVIDER = 0x20000; // Selects the 120 MHz clock divided by 10
+    private static final int MAX_DIVISOR = 0x1ffff; // In eighths
+
+    // Encoding of the three fractional bits
+    private static final int[] FRAC_CODE = {0, 3, 2, 4, 1, 5, 6, 7};
+
+    private static final int[] SIO_RATES = {300, 600, 1200, 2400, 4800, 9600, 19200, 38400, 57600, 115200};
+
+    private final int requestedBaudRate;
+    private final int actualBaudRate;
+    private final int value;
+    private final int index;
+
+    private FTDIBaudRate(int requestedBaudRate, int actualBaudRate, int value, int index) {
+        this.requestedBaudRate = requestedBaudRate;
+        this.actualBaudRate = actualBaudRate;
+        this.value = value;
+        this.index = index;
+    }
+
+    /*
+     * bcdDevice is -1 when unknown, such a chip is handled as a BM
+     */
+    static int getChipType(int bcdDevice, int interfaceCount) {
+        if (interfaceCount > 1) {
+            if (bcdDevice == 0x800)
+                return CHIP_4232H;
+            if (bcdDevice == 0x700)
+                return CHIP_2232H;
+            return CHIP_2232C;
+        }
+        if (bcdDevice < 0)
+            return CHIP_BM;
+        if (bcdDevice < 0x200)
+            return CHIP_SIO;
+        if (bcdDevice < 0x400)
+            return CHIP_AM;
+        if (bcdDevice < 0x600)
+            return CHIP_BM;
+        if (bcdDevice < 0x900)
+            return CHIP_R;
+        if (bcdDevice < 0x1000)
+            return CHIP_232H;
+        return CHIP_X;
+    }
+
+    static boolean isHighSpeed(int chipType) {
+        return chipType == CHIP_2232H || chipType == CHIP_4232H || chipType == CHIP_232H;
+    }
+
+    /*
+     * The high bits of the divisor go in the upper byte of wIndex next to the port on these chips
+     */
+    private static boolean hasPortInIndex(int chipType) {
+        return chipType == CHIP_2232C || chipType == CHIP_X || isHighSpeed(chipType);
+    }
+
+    /**
+     * @param port 1 based interface of multi-interface chips, 0 otherwise
+     */
+    static FTDIBaudRate compute(int baudRate, int chipType, int port) {
+        if (baudRate <= 0)
+            throw new IllegalArgumentException("Baud rate must be positive");
+
+        if (chipType == CHIP_SIO)
+            return computeSio(baudRate);
+
+        long[] encoded = new long[1];
+        int actual;
+        if (chipType == CHIP_AM) {
+            actual = toClockBitsAM(baudRate, encoded);
+        } else if (isHighSpeed(chipType) && baudRate * 10L > H_CLK / 0x3fff) {
+            actual = toClockBits(baudRate, H_CLK, 10, encoded);
+            encoded[0] |= H_CLK_DIVIDER;
+        } else {
+            actual = toClockBits(baudRate, C_CLK, 16, encoded);
+        }
+
+        int value = (int) (encoded[0] & 0xffff);
+        int index = (int) (encoded[0] >> 16);
+        if (hasPortInIndex(chipType))
+            index = (index << 8) | port;
+        return new FTDIBaudRate(baudRate, actual, value, index);
+    }
+
+    /*
+     * Integer divisor with three fractional bits, the sub-integer divisors 1, 1.5 and 2 have codes of their own
+     */
+    private static int toClockBits(int baudRate, int clock, int clockDivider, long[] encoded) {
+        if (baudRate >= clock / clockDivider) {
+            encoded[0] = 0;
+            return clock / clockDivider;
+        }
+        if (baudRate >= clock / (clockDivider + clockDivider / 2)) {
+            encoded[0] = 1;
+            return clock / (clockDivider + clockDivider / 2);
+        }
+        if (baudRate >= clock / (2 * clockDivider)) {
+            encoded[0] = 2;
+            return clock / (2 * clockDivider);
+        }
+
+        // Divided by 16 to keep three fractional bits and one bit for rounding
+        long base = (long) clock * 16 / clockDivider;
+        long divisor = base / baudRate;
+        long bestDivisor = (divisor & 1) != 0 ? divisor / 2 + 1 : divisor / 2;
+        if (bestDivisor > MAX_DIVISOR)
+            bestDivisor = MAX_DIVISOR;
+        long bestBaud = base / bestDivisor;
+        bestBaud = (bestBaud & 1) != 0 ? bestBaud / 2 + 1 : bestBaud / 2;
+        encoded[0] = (bestDivisor >> 3) | ((long) FRAC_CODE[(int) (bestDivisor & 0x7)] << 14);
+        return (int) bestBaud;
+    }
+
+    /*
+     * The AM only has the fractions 0, 0.125, 0.25 and 0.5
+     */
+    private static int toClockBitsAM(int baudRate, long[] encoded) {
+        int divisor3 = (C_CLK / 2 + baudRate / 2) / baudRate; // 24 MHz in eighths, rounded to closest
+        if ((divisor3 & 0x7) == 7)
+            divisor3++; // x.875 goes up to x + 1
+        divisor3 = Math.max(8, Math.min(divisor3, 0x1fff8));
+
+        int divisor = divisor3 >> 3;
+        int fraction = divisor3 & 0x7;
+        if (fraction == 1) {
+            divisor |= 0xc000; // + 0.125
+        } else if (fraction >= 4) {
+            divisor |= 0x4000; // + 0.5
+            fraction = 4;
+        } else if (fraction != 0) {
+            divisor |= 0x8000; // + 0.25
+            fraction = 2;
+        } else if (divisor == 1) {
+            divisor = 0; // 3 Mbaud
+        }
+        encoded[0] = divisor;
+        int effective = (divisor3 & ~0x7) | fraction;
+        return (C_CLK / 2 + effective / 2) / effective;
+    }
+
+    /*
+     * The SIO takes the index of one of its fixed rates, the closest one is used
+     */
+    private static FTDIBaudRate computeSio(int baudRate) {
+        int best = 0;
+        for (int i = 1; i < SIO_RATES.length; i++) {
+            if (Math.abs(SIO_RATES[i] - baudRate) < Math.abs(SIO_RATES[best] - baudRate))
+                best = i;
+        }
+        return new FTDIBaudRate(baudRate, SIO_RATES[best], best, 0);
+    }
+
+    int getRequestedBaudRate() {
+        return requestedBaudRate;
+    }
+
+    int getActualBaudRate() {
+        return actualBaudRate;
+    }
+
+    /*
+     * Relative error of the actual rate, positive when it is faster than requested
+     */
+    double getError() {
+        return (actualBaudRate - requestedBaudRate) / (double) requestedBaudRate;
+    }
+
+    /*
+     * wValue of SIO_SET_BAUD_RATE
+     */
+    int getValue() {
+        return value;
+    }
+
+    /*
+     * wIndex of SIO_SET_BAUD_RATE, port included
+     */
+    int getIndex() {
+        return index;
+    }
+}
@@ -0,0 +1,97 @@
+package com.perpule.serialcommunication.usbserial;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Removes the two status bytes FTDI chips put in front of every IN packet.
+ *
+ * The packet size is the wMaxPacketSize of the IN endpoint: 64 bytes for full speed chips,
+ * 512 bytes for high speed ones (FT232H, FT2232H, FT4232H). Payloads are moved with one
+ * System.arraycopy per packet, the destination may be the source array itself. Direct buffers,
+ * which have no array, are stripped in place with one bulk put per packet.
+ */
+final class FTDIPacketStripper {
+    static final int HEADER_LENGTH = 2;
+    static final int DEFAULT_PACKET_SIZE = 64;
+
+    /*
+     * Receives the two status bytes of every packet while it is stripped. offset and length locate the
+     * payload of that packet in the stripped data, relative to the destination offset
+     */
+    interface StatusListener {
+        void onPacketStatus(int modemStatus, int lineStatus, int offset, int length);
+    }
+
+    private FTDIPacketStripper() {
+    }
+
+    /*
+     * Length of length bytes of FTDI data once the headers are gone
+     */
+    static int strippedLength(int length, int packetSize) {
+        int packets = (length + packetSize - 1) / packetSize;
+        int last = length - (packets - 1) * packetSize;
+        return length - packets * HEADER_LENGTH + (last < HEADER_LENGTH ? HEADER_LENGTH - last : 0);
+    }
+
+    /*
+     * Copies the payloads of src[srcOffset, srcOffset + length) to dst from dstOffset on.
+     * dst may be src as long as dstOffset <= srcOffset. Returns the number of bytes written to dst
+     */
+    static int strip(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset, int packetSize) {
+        return strip(src, srcOffset, length, dst, dstOffset, packetSize, null);
+    }
+
+    /*
+     * Same as above, the status of each packet goes to listener in the same pass.
+     * The header is read before the payload is moved so in place stripping is safe
+     */
+    static int strip(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset, int packetSize,
+                     StatusListener listener) {
+        int written = 0;
+        int end = srcOffset + length;
+        for (int packet = srcOffset; packet < end; packet += packetSize) {
+            int n = Math.min(packetSize, end - packet) - HEADER_LENGTH;
+            if (listener != null && n >= 0)
+                listener.onPacketStatus(src[packet] & 0xff, src[packet + 1] & 0xff, written, n);
+            if (n > 0) {
+                System.arraycopy(src, packet + HEADER_LENGTH, dst, dstOffset + written, n);
+                written += n;
+            }
+        }
+        return written;
+    }
+
+    /*
+     * In place variant, payloads are packed at the start of the region
+     */
+    static int strip(byte[] buffer, int offset, int length, int packetSize) {
+        return strip(buffer, offset, length, buffer, offset, packetSize);
+    }
+
+    /*
+     * In place variant for buffers with or without a backing array, the first length bytes are stripped
+     * and the payloads packed from index 0. The position and limit of buffer are left undefined
+     */
+    static int strip(ByteBuffer buffer, int length, int packetSize, StatusListener listener) {
+        if (buffer.hasArray())
+            return strip(buffer.array(), buffer.arrayOffset(), length, buffer.array(), buffer.arrayOffset(),
+                    packetSize, listener);
+
+        // The payload always moves towards the start of the buffer, ahead of anything not yet read
+        ByteBuffer src = buffer.duplicate();
+        int written = 0;
+        for (int packet = 0; packet < length; packet += packetSize) {
+            int n = Math.min(packetSize, length - packet) - HEADER_LENGTH;
+            if (listener != null && n >= 0)
+                listener.onPacketStatus(buffer.get(packet) & 0xff, buffer.get(packet + 1) & 0xff, written, n);
+            if (n > 0) {
+                src.limit(packet + HEADER_LENGTH + n).position(packet + HEADER_LENGTH);
+                buffer.limit(written + n).position(written);
+                buffer.put(src);
+                written += n;
+            }
+        }
+        return written;
+    }
+}
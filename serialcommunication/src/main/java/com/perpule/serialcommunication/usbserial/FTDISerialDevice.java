@@ -7,6 +7,7 @@ import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbRequest;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 public class FTDISerialDevice extends UsbSerialDevice
@@ -18,8 +19,18 @@ public class FTDISerialDevice extends UsbSerialDevice
     private static final int FTDI_SIO_SET_FLOW_CTRL = 2;
     private static final int FTDI_SIO_SET_BAUD_RATE = 3;
     private static final int FTDI_SIO_SET_DATA = 4;
+    private static final int FTDI_SIO_SET_EVENT_CHAR = 6;
+    private static final int FTDI_SIO_SET_LATENCY_TIMER = 9;
+    private static final int FTDI_SIO_GET_LATENCY_TIMER = 10;
 
     private static final int FTDI_REQTYPE_HOST2DEVICE = 0x40;
+    private static final int FTDI_REQTYPE_DEVICE2HOST = 0xC0;
+
+    /**
+     * Latency timer in ms: how long the chip holds a partly filled packet before sending it
+     */
+    public static final int FTDI_LATENCY_TIMER_DEFAULT = 16;
+    public static final int FTDI_LATENCY_TIMER_LOW = 1;
 
     /**
      *  RTS and DTR values obtained from FreeBSD FTDI driver
@@ -32,6 +43,16 @@ public class FTDISerialDevice extends UsbSerialDevice
     private static final int FTDI_SIO_SET_RTS_HIGH = (2 | (FTDI_SIO_SET_RTS_MASK << 8));
     private static final int FTDI_SIO_SET_RTS_LOW = (0 | (FTDI_SIO_SET_RTS_MASK << 8));
 
+    /**
+     * Line status bits of the second byte of every FTDI packet
+     */
+    public static final int FTDI_LINE_STATUS_OVERRUN = 0x02;
+    public static final int FTDI_LINE_STATUS_PARITY = 0x04;
+    public static final int FTDI_LINE_STATUS_FRAMING = 0x08;
+    public static final int FTDI_LINE_STATUS_BREAK = 0x10;
+    private static final int FTDI_LINE_STATUS_ERRORS = FTDI_LINE_STATUS_OVERRUN | FTDI_LINE_STATUS_PARITY
+            | FTDI_LINE_STATUS_FRAMING | FTDI_LINE_STATUS_BREAK;
+
     public static final int FTDI_BAUDRATE_300 = 0x2710;
     public static final int FTDI_BAUDRATE_600 = 0x1388;
     public static final int FTDI_BAUDRATE_1200 = 0x09c4;
@@ -62,6 +83,9 @@ public class FTDISerialDevice extends UsbSerialDevice
     private static final int FTDI_SET_FLOW_CTRL_DEFAULT = 0x0000;
 
     private int currentSioSetData = 0x0000;
+    private int chipType = FTDIBaudRate.CHIP_BM;
+    private volatile FTDIBaudRate currentBaudRate;
+    private int latencyTimer = -1; // -1 while unknown
 
     /**
      * Flow control variables
@@ -87,6 +111,7 @@ public class FTDISerialDevice extends UsbSerialDevice
     private UsbFrameCallback frameCallback;
     private UsbOverrunCallback overrunCallback;
     private UsbBreakCallback breakCallback;
+    private FTDILineErrorCallback lineErrorCallback;
 
 
     public FTDISerialDevice(UsbDevice device, UsbDeviceConnection connection)
@@ -136,11 +161,12 @@ public class FTDISerialDevice extends UsbSerialDevice
     @Override
     public void close()
     {
+        // Queued data is sent before DTR and RTS drop
+        killWorkingThread();
+        killWriteThread();
         setControlCommand(FTDI_SIO_MODEM_CTRL, FTDI_SET_MODEM_CTRL_DEFAULT3, 0, null);
         setControlCommand(FTDI_SIO_MODEM_CTRL, FTDI_SET_MODEM_CTRL_DEFAULT4, 0, null);
         currentSioSetData = 0x0000;
-        killWorkingThread();
-        killWriteThread();
         connection.releaseInterface(mInterface);
     }
 
@@ -171,43 +197,63 @@ public class FTDISerialDevice extends UsbSerialDevice
     @Override
     public void setBaudRate(int baudRate)
     {
-        int value = 0;
-        if(baudRate >= 0 && baudRate <= 300 )
-            value = FTDI_BAUDRATE_300;
-        else if(baudRate > 300 && baudRate <= 600)
-            value = FTDI_BAUDRATE_600;
-        else if(baudRate > 600 && baudRate <= 1200)
-            value = FTDI_BAUDRATE_1200;
-        else if(baudRate > 1200 && baudRate <= 2400)
-            value = FTDI_BAUDRATE_2400;
-        else if(baudRate > 2400 && baudRate <= 4800)
-            value = FTDI_BAUDRATE_4800;
-        else if(baudRate > 4800 && baudRate <= 9600)
-            value = FTDI_BAUDRATE_9600;
-        else if(baudRate > 9600 && baudRate <=19200)
-            value = FTDI_BAUDRATE_19200;
-        else if(baudRate > 19200 && baudRate <= 38400)
-            value = FTDI_BAUDRATE_38400;
-        else if(baudRate > 19200 && baudRate <= 57600)
-            value = FTDI_BAUDRATE_57600;
-        else if(baudRate > 57600 && baudRate <= 115200)
-            value = FTDI_BAUDRATE_115200;
-        else if(baudRate > 115200 && baudRate <= 230400)
-            value = FTDI_BAUDRATE_230400;
-        else if(baudRate > 230400 && baudRate <= 460800)
-            value = FTDI_BAUDRATE_460800;
-        else if(baudRate > 460800 && baudRate <= 921600)
-            value = FTDI_BAUDRATE_921600;
-        else if(baudRate > 921600)
-            value = FTDI_BAUDRATE_921600;
-        else
-            value = FTDI_BAUDRATE_9600;
-        setControlCommand(FTDI_SIO_SET_BAUD_RATE, value, 0, null);
+        invalidateConfig();
+        onBaudRateChanged(baudRate);
+        sendBaudRate(baudRate);
+    }
+
+    /**
+     * @return rate the chip runs at after the last baud rate change, the closest its divisors allow. -1 before any change
+     */
+    public int getActualBaudRate()
+    {
+        FTDIBaudRate rate = currentBaudRate;
+        return rate != null ? rate.getActualBaudRate() : -1;
+    }
+
+    /**
+     * @return relative error of {@link #getActualBaudRate()} to the requested rate, positive when faster. 0 before any change
+     */
+    public double getBaudRateError()
+    {
+        FTDIBaudRate rate = currentBaudRate;
+        return rate != null ? rate.getError() : 0;
+    }
+
+    private int sendBaudRate(int baudRate)
+    {
+        if(baudRate <= 0)
+            return -1;
+
+        // The port is part of the divisor index, setControlCommand() cannot be used
+        FTDIBaudRate rate = FTDIBaudRate.compute(baudRate, chipType, getPort());
+        int response = connection.controlTransfer(FTDI_REQTYPE_HOST2DEVICE, FTDI_SIO_SET_BAUD_RATE, rate.getValue(),
+                rate.getIndex(), null, 0, USB_TIMEOUT);
+        if(response >= 0)
+            currentBaudRate = rate;
+        return response;
+    }
+
+    private int getPort()
+    {
+        return device.getInterfaceCount() > 1 ? mInterface.getId() + 1 : 0;
+    }
+
+    /*
+        bcdDevice from the raw device descriptor, -1 if it cannot be read
+    */
+    private int readBcdDevice()
+    {
+        byte[] descriptors = connection.getRawDescriptors();
+        if(descriptors == null || descriptors.length < 14)
+            return -1;
+        return (descriptors[12] & 0xff) | ((descriptors[13] & 0xff) << 8);
     }
 
     @Override
     public void setDataBits(int dataBits)
     {
+        invalidateConfig();
         switch(dataBits)
         {
             case UsbSerialInterface.DATA_BITS_5:
@@ -252,6 +298,7 @@ public class FTDISerialDevice extends UsbSerialDevice
     @Override
     public void setStopBits(int stopBits)
     {
+        invalidateConfig();
         switch(stopBits)
         {
             case UsbSerialInterface.STOP_BITS_1:
@@ -284,6 +331,7 @@ public class FTDISerialDevice extends UsbSerialDevice
     @Override
     public void setParity(int parity)
     {
+        invalidateConfig();
         switch(parity)
         {
             case UsbSerialInterface.PARITY_NONE:
@@ -329,6 +377,7 @@ public class FTDISerialDevice extends UsbSerialDevice
     @Override
     public void setFlowControl(int flowControl)
     {
+        invalidateConfig();
         switch(flowControl)
         {
             case UsbSerialInterface.FLOW_CONTROL_OFF:
@@ -359,6 +408,82 @@ public class FTDISerialDevice extends UsbSerialDevice
         }
     }
 
+    @Override
+    boolean applyConfig(SerialConfig current, SerialConfig config)
+    {
+        if(current == null || current.getBaudRate() != config.getBaudRate())
+        {
+            if(sendBaudRate(config.getBaudRate()) < 0)
+                return false;
+        }
+
+        // Data bits, parity and stop bits share SIO_SET_DATA, currentSioSetData follows the device since open
+        int sioSetData = config.getDataBits() | (config.getParity() << 8) | (config.getStopBitsCode() << 11);
+        if(sioSetData != currentSioSetData)
+        {
+            if(setControlCommand(FTDI_SIO_SET_DATA, sioSetData, 0, null) < 0)
+                return false;
+            currentSioSetData = sioSetData;
+        }
+
+        if(current == null || current.getFlowControl() != config.getFlowControl())
+            setFlowControl(config.getFlowControl());
+
+        // Frames that fit in one packet would otherwise wait for the latency timer on every read
+        if(config.getFrameSize() > 0 && (current == null || current.getFrameSize() != config.getFrameSize()))
+        {
+            int maxPayload = ftdiUtilities.getPacketSize() - FTDIPacketStripper.HEADER_LENGTH;
+            int latency = config.getFrameSize() <= maxPayload ? FTDI_LATENCY_TIMER_LOW : FTDI_LATENCY_TIMER_DEFAULT;
+            if(latency != latencyTimer && !setLatencyTimer(latency))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Short frames are only sent to the host when the latency timer expires or the event character is received,
+     * a low value cuts the response time of small request/response protocols at the cost of more USB traffic.
+     * {@link #configure(SerialConfig)} lowers it when the frame size fits in one packet.
+     *
+     * @param latency timer in milliseconds, between 1 and 255
+     * @return true if the chip accepted it
+     */
+    public boolean setLatencyTimer(int latency)
+    {
+        if(latency < 1 || latency > 255)
+            throw new IllegalArgumentException("Latency timer must be between 1 and 255 ms");
+        if(setControlCommand(FTDI_SIO_SET_LATENCY_TIMER, latency, 0, null) < 0)
+            return false;
+        latencyTimer = latency;
+        return true;
+    }
+
+    /**
+     * @return latency timer in milliseconds read back from the chip, -1 if it cannot be read
+     */
+    public int getLatencyTimer()
+    {
+        byte[] data = new byte[1];
+        int response = connection.controlTransfer(FTDI_REQTYPE_DEVICE2HOST, FTDI_SIO_GET_LATENCY_TIMER, 0,
+                mInterface.getId() + 1, data, data.length, USB_TIMEOUT);
+        if(response != 1)
+            return -1;
+        latencyTimer = data[0] & 0xff;
+        return latencyTimer;
+    }
+
+    /**
+     * When enabled, receiving eventChar makes the chip send the data buffered so far right away, without waiting for
+     * the latency timer. Useful for protocols with a frame terminator.
+     *
+     * @return true if the chip accepted it
+     */
+    public boolean setEventChar(int eventChar, boolean enabled)
+    {
+        int value = (eventChar & 0xff) | (enabled ? 0x100 : 0);
+        return setControlCommand(FTDI_SIO_SET_EVENT_CHAR, value, 0, null) >= 0;
+    }
+
     @Override
     public void setRTS(boolean state)
     {
@@ -419,6 +544,14 @@ public class FTDISerialDevice extends UsbSerialDevice
         this.parityCallback = parityCallback;
     }
 
+    /**
+     * Line errors of every packet with the position of the affected data
+     */
+    public void getLineErrors(FTDILineErrorCallback lineErrorCallback)
+    {
+        this.lineErrorCallback = lineErrorCallback;
+    }
+
     private boolean openFTDI()
     {
         if(connection.claimInterface(mInterface, true))
@@ -443,7 +576,15 @@ public class FTDISerialDevice extends UsbSerialDevice
             }
         }
 
+        // Divisors depend on the chip type, only the device release number tells them apart
+        chipType = FTDIBaudRate.getChipType(readBcdDevice(), device.getInterfaceCount());
+
+        // High speed chips use 512 byte packets, each one starts with the two status bytes
+        ftdiUtilities.setPacketSize(inEndpoint != null ? inEndpoint.getMaxPacketSize() : 0);
+
         // Default Setup
+        invalidateConfig();
+        latencyTimer = -1;
         firstTime = true;
         if(setControlCommand(FTDI_SIO_RESET, 0x00, 0, null) < 0)
             return false;
@@ -456,7 +597,7 @@ public class FTDISerialDevice extends UsbSerialDevice
             return false;
         if(setControlCommand(FTDI_SIO_SET_FLOW_CTRL, FTDI_SET_FLOW_CTRL_DEFAULT, 0, null) < 0)
             return false;
-        if(setControlCommand(FTDI_SIO_SET_BAUD_RATE, FTDI_BAUDRATE_9600, 0, null) < 0)
+        if(sendBaudRate(9600) < 0)
             return false;
 
         // Flow control disabled by default
@@ -477,39 +618,69 @@ public class FTDISerialDevice extends UsbSerialDevice
         return response;
     }
 
-    public class FTDIUtilities
+    /**
+     * Receives the line errors found in each FTDI packet. offset and length locate the payload of that packet
+     * within the data delivered for the same transfer, this callback runs before the data is delivered.
+     */
+    public interface FTDILineErrorCallback
+    {
+        void onLineError(int lineStatus, int offset, int length);
+    }
+
+    public class FTDIUtilities implements FTDIPacketStripper.StatusListener
     {
+        private int packetSize = FTDIPacketStripper.DEFAULT_PACKET_SIZE;
+        private int transferErrors; // SerialLineErrors bits found in any packet of the current transfer
+        private final int[] transferErrorCounts = new int[4]; // Packets of the current transfer flagging each error
+
         // Special treatment needed to FTDI devices
         public byte[] adaptArray(byte[] ftdiData)
         {
-            int length = ftdiData.length;
-            if(length > 64)
-            {
-                int n = 1;
-                int p = 64;
-                // Precalculate length without FTDI headers
-                while(p < length)
-                {
-                    n++;
-                    p = n*64;
-                }
-                int realLength = length - n*2;
-                byte[] data = new byte[realLength];
-                copyData(ftdiData, data);
-                return data;
-            }else
-            {
-                return Arrays.copyOfRange(ftdiData, 2, length);
-            }
+            byte[] data = new byte[FTDIPacketStripper.strippedLength(ftdiData.length, packetSize)];
+            FTDIPacketStripper.strip(ftdiData, 0, ftdiData.length, data, 0, packetSize);
+            return data;
+        }
+
+        // Strips the FTDI headers in place checking the status of every packet, returns the length of the remaining data
+        public int adaptBuffer(ByteBuffer ftdiData, int length)
+        {
+            int written = FTDIPacketStripper.strip(ftdiData, length, packetSize, this);
+            notifyLineErrors();
+            return written;
+        }
+
+        // Strips the FTDI headers into dst checking the status of every packet, returns the number of bytes written
+        public int adaptArray(byte[] ftdiData, int length, byte[] dst, int dstOffset)
+        {
+            int written = FTDIPacketStripper.strip(ftdiData, 0, length, dst, dstOffset, packetSize, this);
+            notifyLineErrors();
+            return written;
+        }
+
+        int getPacketSize()
+        {
+            return packetSize;
+        }
+
+        void setPacketSize(int packetSize)
+        {
+            this.packetSize = packetSize > FTDIPacketStripper.HEADER_LENGTH ? packetSize : FTDIPacketStripper.DEFAULT_PACKET_SIZE;
         }
 
         public void checkModemStatus(byte[] data)
         {
-            if(data.length == 0) // Safeguard for zero length arrays
+            if(data.length < 2) // Safeguard for zero length arrays
                 return;
 
-            boolean cts = (data[0] & 0x10) == 0x10;
-            boolean dsr = (data[0] & 0x20) == 0x20;
+            onPacketStatus(data[0] & 0xff, data[1] & 0xff, 0, 0);
+            notifyLineErrors();
+        }
+
+        @Override
+        public void onPacketStatus(int modemStatus, int lineStatus, int offset, int length)
+        {
+            boolean cts = (modemStatus & 0x10) == 0x10;
+            boolean dsr = (modemStatus & 0x20) == 0x20;
 
             if(firstTime) // First modem status received
             {
@@ -523,7 +694,6 @@ public class FTDISerialDevice extends UsbSerialDevice
                     dsrCallback.onDSRChanged(dsrState);
 
                 firstTime = false;
-                return;
             }
 
             if(rtsCtsEnabled &&
@@ -540,62 +710,57 @@ public class FTDISerialDevice extends UsbSerialDevice
                 dsrCallback.onDSRChanged(dsrState);
             }
 
-            if(parityCallback != null) // Parity error checking
+            int errors = lineStatus & FTDI_LINE_STATUS_ERRORS;
+            if(errors != 0)
             {
-                if((data[1] & 0x04) == 0x04)
-                {
-                    parityCallback.onParityError();
-                }
-            }
-
-            if(frameCallback != null) // Frame error checking
-            {
-                if((data[1] & 0x08) == 0x08)
-                {
-                    frameCallback.onFramingError();
-                }
+                countLineError(errors, FTDI_LINE_STATUS_PARITY, SerialLineErrors.PARITY);
+                countLineError(errors, FTDI_LINE_STATUS_FRAMING, SerialLineErrors.FRAMING);
+                countLineError(errors, FTDI_LINE_STATUS_OVERRUN, SerialLineErrors.OVERRUN);
+                countLineError(errors, FTDI_LINE_STATUS_BREAK, SerialLineErrors.BREAK);
+                if(lineErrorCallback != null)
+                    lineErrorCallback.onLineError(errors, offset, length);
             }
+        }
 
-            if(overrunCallback != null) // Overrun error checking
+        private void countLineError(int lineStatus, int statusBit, int type)
+        {
+            if((lineStatus & statusBit) == statusBit)
             {
-                if((data[1] & 0x02) == 0x02)
-                {
-                    overrunCallback.onOverrunError();
-                }
+                transferErrors |= 1 << type;
+                transferErrorCounts[type]++;
             }
+        }
 
-            if(breakCallback != null) // Break interrupt checking
-            {
-                if((data[1] & 0x10) == 0x10)
-                {
-                    breakCallback.onBreakInterrupt();
-                }
-            }
+        // A transfer is one report of the line errors, every packet flagging an error counts as an occurrence
+        private void notifyLineErrors()
+        {
+            lineErrors.update(transferErrors, transferErrorCounts);
+            transferErrors = 0;
+            Arrays.fill(transferErrorCounts, 0);
         }
+    }
 
-        // Copy data without FTDI headers
-        private void copyData(byte[] src, byte[] dst)
+    @Override
+    void onLineErrorEvent(int error, int count)
+    {
+        switch(error)
         {
-            int i = 0; // src index
-            int j = 0; // dst index
-            while(i <= src.length-1)
-            {
-                if(i != 0 && i != 1)
-                {
-                    if(i % 64 == 0 && i >= 64)
-                    {
-                        i += 2;
-                    }else
-                    {
-                        dst[j] = src[i];
-                        i++;
-                        j++;
-                    }
-                }else
-                {
-                    i++;
-                }
-            }
+            case SerialLineErrors.PARITY:
+                if(parityCallback != null)
+                    parityCallback.onParityError();
+                break;
+            case SerialLineErrors.FRAMING:
+                if(frameCallback != null)
+                    frameCallback.onFramingError();
+                break;
+            case SerialLineErrors.OVERRUN:
+                if(overrunCallback != null)
+                    overrunCallback.onOverrunError();
+                break;
+            case SerialLineErrors.BREAK:
+                if(breakCallback != null)
+                    breakCallback.onBreakInterrupt();
+                break;
         }
     }
 
@@ -615,8 +780,9 @@ public class FTDISerialDevice extends UsbSerialDevice
             return 0;
         }
 
-        int n = buffer.length / 62;
-        if(buffer.length % 62 != 0)
+        int payloadSize = ftdiUtilities.getPacketSize() - 2;
+        int n = buffer.length / payloadSize;
+        if(buffer.length % payloadSize != 0)
         {
             n++;
         }
@@ -641,18 +807,20 @@ public class FTDISerialDevice extends UsbSerialDevice
 
             if(numberBytes > 2) // Data received
             {
-                byte[] newBuffer = this.ftdiUtilities.adaptArray(tempBuffer);
-                System.arraycopy(newBuffer, 0, buffer, 0, buffer.length);
-
-                int p = numberBytes / 64;
-                if(numberBytes % 64 != 0)
-                {
-                    p++;
-                }
-                readen = numberBytes - p * 2;
+                readen = ftdiUtilities.adaptArray(tempBuffer, numberBytes, buffer, 0);
             }
         }while(readen <= 0);
 
         return readen;
     }
+
+    // The status bytes of every packet are stripped in place, the line status is checked on the way
+    @Override
+    int syncReadTransfer(byte[] buffer, int timeout)
+    {
+        int numberBytes = connection.bulkTransfer(inEndpoint, buffer, buffer.length, timeout);
+        if(numberBytes <= 0)
+            return numberBytes;
+        return ftdiUtilities.adaptArray(buffer, numberBytes, buffer, 0);
+    }
 }
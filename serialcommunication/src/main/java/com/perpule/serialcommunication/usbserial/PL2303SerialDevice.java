@@ -7,6 +7,8 @@ import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbRequest;
 
+import java.util.Arrays;
+
 public class PL2303SerialDevice extends UsbSerialDevice
 {
     private static final String CLASS_ID = PL2303SerialDevice.class.getSimpleName();
@@ -112,6 +114,8 @@ public class PL2303SerialDevice extends UsbSerialDevice
     @Override
     public void setBaudRate(int baudRate)
     {
+        invalidateConfig();
+        onBaudRateChanged(baudRate);
         byte[] tempBuffer = new byte[4];
         tempBuffer[0] = (byte) (baudRate & 0xff);
         tempBuffer[1] = (byte) (baudRate >> 8 & 0xff);
@@ -131,6 +135,7 @@ public class PL2303SerialDevice extends UsbSerialDevice
     @Override
     public void setDataBits(int dataBits)
     {
+        invalidateConfig();
         switch(dataBits)
         {
             case UsbSerialInterface.DATA_BITS_5:
@@ -170,6 +175,7 @@ public class PL2303SerialDevice extends UsbSerialDevice
     @Override
     public void setStopBits(int stopBits)
     {
+        invalidateConfig();
         switch(stopBits)
         {
             case UsbSerialInterface.STOP_BITS_1:
@@ -201,6 +207,7 @@ public class PL2303SerialDevice extends UsbSerialDevice
     @Override
     public void setParity(int parity)
     {
+        invalidateConfig();
         switch(parity)
         {
             case UsbSerialInterface.PARITY_NONE:
@@ -251,6 +258,29 @@ public class PL2303SerialDevice extends UsbSerialDevice
 
     }
 
+    @Override
+    boolean applyConfig(SerialConfig current, SerialConfig config)
+    {
+        // Everything goes in a single SET_LINE_CODING, defaultSetLine holds what the device has
+        int baudRate = config.getBaudRate();
+        byte[] lineCoding = new byte[]{
+                (byte) (baudRate & 0xff),
+                (byte) (baudRate >> 8 & 0xff),
+                (byte) (baudRate >> 16 & 0xff),
+                (byte) (baudRate >> 24 & 0xff),
+                (byte) config.getStopBitsCode(),
+                (byte) config.getParity(),
+                (byte) config.getDataBits()
+        };
+        if(!Arrays.equals(lineCoding, defaultSetLine))
+        {
+            if(setControlCommand(PL2303_REQTYPE_HOST2DEVICE, PL2303_SET_LINE_CODING, 0x0000, 0, lineCoding) < 0)
+                return false;
+            defaultSetLine = lineCoding;
+        }
+        return true;
+    }
+
     @Override
     public void setRTS(boolean state)
     {
@@ -326,6 +356,7 @@ public class PL2303SerialDevice extends UsbSerialDevice
         }
 
         //Default Setup
+        invalidateConfig();
         byte[] buf = new byte[1];
         //Specific vendor stuff that I barely understand but It is on linux drivers, So I trust :)
         if(setControlCommand(PL2303_REQTYPE_DEVICE2HOST_VENDOR, PL2303_VENDOR_WRITE_REQUEST, 0x8484, 0, buf) < 0)
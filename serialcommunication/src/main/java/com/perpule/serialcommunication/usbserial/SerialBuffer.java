@@ -1,21 +1,34 @@
 package com.perpule.serialcommunication.usbserial;
 
+import java.io.IOException;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SerialBuffer {
     static final int DEFAULT_READ_BUFFER_SIZE = 4 * 1024;
     private static final int DEFAULT_WRITE_BUFFER_SIZE = 16 * 1024;
     private ByteBuffer readBuffer;
-    private SynchronizedBuffer writeBuffer;
-    private byte[] readBuffer_compatible; // Read buffer for android < 4.2
+    // One per in-flight IN request, readBuffers[0] == readBuffer. Direct so the kernel transfer needs no extra copy
+    private ByteBuffer[] readBuffers;
+    private SerialRingBuffer writeBuffer;
+    // Segments chained behind the write ring by WRITE_OVERFLOW_GROW, sent once the ring is empty
+    private ConcurrentLinkedQueue<byte[]> writeOverflow;
+    private AtomicInteger writeOverflowBytes;
+    private final SerialWriteTracker writeTracker = new SerialWriteTracker();
+    private byte[] readBuffer_compatible; // Read buffer for android < 4.2, bulkTransfer only takes arrays
+    private SerialBufferPool readPool;
+    private int readChunkSize = DEFAULT_READ_BUFFER_SIZE; // Size of new read pool chunks, guarded by this
 
     SerialBuffer(boolean version) {
-        writeBuffer = new SynchronizedBuffer();
+        writeBuffer = new SerialRingBuffer(DEFAULT_WRITE_BUFFER_SIZE);
+        writeOverflow = new ConcurrentLinkedQueue<>();
+        writeOverflowBytes = new AtomicInteger();
         if (version) {
-            readBuffer = ByteBuffer.allocate(DEFAULT_READ_BUFFER_SIZE);
-
+            readBuffers = new ByteBuffer[0]; // Allocated once the transfer size is known
         } else {
             readBuffer_compatible = new byte[DEFAULT_READ_BUFFER_SIZE];
         }
@@ -30,7 +43,8 @@ public class SerialBuffer {
     public void putReadBuffer(ByteBuffer data) {
         synchronized (this) {
             try {
-                readBuffer.put(data);
+                if (readBuffer != null)
+                    readBuffer.put(data);
             } catch (BufferOverflowException e) {
                 // TO-DO
             }
@@ -43,84 +57,282 @@ public class SerialBuffer {
         }
     }
 
+    /*
+     * Makes sure there is a read buffer of at least size bytes for each of the count IN requests kept in flight
+     */
+    void allocateReadBuffers(int count, int size) {
+        synchronized (this) {
+            if (readBuffers == null)
+                return;
+            ByteBuffer[] buffers = new ByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                ByteBuffer buffer = i < readBuffers.length ? readBuffers[i] : null;
+                buffers[i] = buffer != null && buffer.capacity() >= size ? buffer : ByteBuffer.allocateDirect(size);
+                buffers[i].clear();
+            }
+            readBuffers = buffers;
+            readBuffer = buffers[0];
+        }
+    }
+
+    /*
+     * Replaces the buffer of a slot whose request is not queued by a larger one, the old one is dropped
+     */
+    ByteBuffer growReadBuffer(int slot, int size) {
+        synchronized (this) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+            readBuffers[slot] = buffer;
+            if (slot == 0)
+                readBuffer = buffer;
+            return buffer;
+        }
+    }
+
+    ByteBuffer getReadBuffer(int slot) {
+        synchronized (this) {
+            return readBuffers[slot];
+        }
+    }
+
     public byte[] getDataReceived() {
+        return getDataReceived(0);
+    }
+
+    byte[] getDataReceived(int slot) {
         synchronized (this) {
-            byte[] dst = new byte[readBuffer.position()];
-            readBuffer.position(0);
-            readBuffer.get(dst, 0, dst.length);
+            if (slot >= readBuffers.length)
+                return new byte[0];
+            ByteBuffer buffer = readBuffers[slot];
+            byte[] dst = new byte[buffer.position()];
+            buffer.position(0);
+            buffer.get(dst, 0, dst.length);
             return dst;
         }
     }
 
     void clearReadBuffer() {
+        clearReadBuffer(0);
+    }
+
+    void clearReadBuffer(int slot) {
         synchronized (this) {
-            readBuffer.clear();
+            readBuffers[slot].clear();
         }
     }
 
-    byte[] getWriteBuffer() {
-        return writeBuffer.get();
+    SerialRingBuffer getWriteBuffer() {
+        return writeBuffer;
     }
 
+    /*
+     * Never drops nor blocks: data that does not fit in the write buffer is chained behind it as an overflow segment,
+     * like the unbounded buffer the legacy write() used to fill
+     */
     void putWriteBuffer(byte[] data) {
-        writeBuffer.put(data);
+        putWriteBuffer(data, UsbSerialInterface.WRITE_OVERFLOW_GROW, 0);
     }
 
-    void resetWriteBuffer() {
-        writeBuffer.reset();
+    /*
+     * Queues data following the given UsbSerialInterface.WRITE_OVERFLOW_* policy.
+     * Returns the number of bytes queued, 0 if the data was refused or the timeout expired
+     */
+    int putWriteBuffer(byte[] data, int overflowPolicy, int timeout) {
+        if (data == null || data.length == 0)
+            return 0;
+
+        switch (overflowPolicy) {
+            case UsbSerialInterface.WRITE_OVERFLOW_BLOCK:
+                return putBlocking(data, timeout);
+            case UsbSerialInterface.WRITE_OVERFLOW_GROW:
+                if (writeOverflow.isEmpty() && writeBuffer.offer(data, 0, data.length))
+                    return data.length;
+                writeOverflowBytes.addAndGet(data.length);
+                writeOverflow.add(data.clone());
+                writeBuffer.wakeConsumer();
+                return data.length;
+            case UsbSerialInterface.WRITE_OVERFLOW_FAIL:
+            default:
+                if (writeOverflow.isEmpty() && writeBuffer.offer(data, 0, data.length))
+                    return data.length;
+                return 0;
+        }
     }
 
-    byte[] getBufferCompatible() {
-        return readBuffer_compatible;
+    /*
+     * Gathers the remaining bytes of data following the given UsbSerialInterface.WRITE_OVERFLOW_* policy, the buffers
+     * are queued back to back without other writes in between unless they are larger than the ring.
+     * Returns the number of bytes queued, positions are moved past them
+     */
+    int putWriteBuffer(ByteBuffer[] data, int overflowPolicy, int timeout) {
+        int length = remaining(data);
+        if (length == 0)
+            return 0;
+
+        switch (overflowPolicy) {
+            case UsbSerialInterface.WRITE_OVERFLOW_BLOCK:
+                return putBlocking(data, length, timeout);
+            case UsbSerialInterface.WRITE_OVERFLOW_GROW:
+                if (writeOverflow.isEmpty() && writeBuffer.offer(data, length) >= 0)
+                    return length;
+                byte[] segment = new byte[length];
+                int offset = 0;
+                for (ByteBuffer src : data) {
+                    int n = src.remaining();
+                    src.get(segment, offset, n);
+                    offset += n;
+                }
+                writeOverflowBytes.addAndGet(length);
+                writeOverflow.add(segment);
+                writeBuffer.wakeConsumer();
+                return length;
+            case UsbSerialInterface.WRITE_OVERFLOW_FAIL:
+            default:
+                if (writeOverflow.isEmpty() && writeBuffer.offer(data, length) >= 0)
+                    return length;
+                return 0;
+        }
     }
 
-    byte[] getDataReceivedCompatible(int numberBytes) {
-        return Arrays.copyOfRange(readBuffer_compatible, 0, numberBytes);
+    /*
+     * Queues the remaining bytes of data as one tracked write, waiting for room until its deadline. A write that can not
+     * be queued comes back failed
+     */
+    SerialWriteFuture putWriteAsync(ByteBuffer[] data, long deadline) {
+        int length = remaining(data);
+        SerialWriteFuture write = new SerialWriteFuture(length, deadline);
+        if (length == 0) {
+            write.onSent(0);
+        } else if (length > writeBuffer.capacity()) {
+            write.fail(new IOException(length + " bytes do not fit in the " + writeBuffer.capacity() + " byte write buffer"));
+        } else {
+            while (true) {
+                synchronized (writeTracker) {
+                    if (writeOverflow.isEmpty()) {
+                        long start = writeBuffer.offer(data, length);
+                        if (start >= 0) {
+                            writeTracker.add(write, start);
+                            return write;
+                        }
+                    }
+                }
+                if (!writeBuffer.awaitSpace(deadline)) {
+                    write.fail(new IOException("Write deadline passed before there was room for the data"));
+                    break;
+                }
+            }
+        }
+        write.notifyCallback();
+        return write;
     }
 
-    private class SynchronizedBuffer {
-        private byte[] buffer;
-        private int position;
-
-        SynchronizedBuffer() {
-            this.buffer = new byte[DEFAULT_WRITE_BUFFER_SIZE];
-            position = -1;
-        }
-
-        public synchronized void put(byte[] src) {
-            if (src == null || src.length == 0) return;
-            if (position == -1)
-                position = 0;
-            if (position + src.length > DEFAULT_WRITE_BUFFER_SIZE - 1) //Checking bounds. Source data does not fit in buffer
-            {
-                if (position < DEFAULT_WRITE_BUFFER_SIZE)
-                    System.arraycopy(src, 0, buffer, position, DEFAULT_WRITE_BUFFER_SIZE - position);
-                position = DEFAULT_WRITE_BUFFER_SIZE;
-                notify();
-            } else // Source data fits in buffer
-            {
-                System.arraycopy(src, 0, buffer, position, src.length);
-                position += src.length;
-                notify();
+    SerialWriteTracker getWriteTracker() {
+        return writeTracker;
+    }
+
+    /*
+     * Remaining bytes of all the buffers
+     */
+    static int remaining(ByteBuffer[] buffers) {
+        long length = 0;
+        for (ByteBuffer buffer : buffers)
+            length += buffer.remaining();
+        if (length > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("More than " + Integer.MAX_VALUE + " bytes");
+        return (int) length;
+    }
+
+    /*
+     * Data larger than the ring is queued in ring sized pieces, a timeout of 0 waits forever
+     */
+    private int putBlocking(byte[] data, int timeout) {
+        long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : Long.MAX_VALUE;
+        int offset = 0;
+        while (offset < data.length) {
+            int length = Math.min(data.length - offset, writeBuffer.capacity());
+            if (writeOverflow.isEmpty() && writeBuffer.offer(data, offset, length)) {
+                offset += length;
+            } else if (!writeBuffer.awaitSpace(deadline)) {
+                break;
             }
         }
+        return offset;
+    }
 
-        public synchronized byte[] get() {
-            if (position == -1) {
-                try {
-                    wait();
-                } catch (InterruptedException ignored) {
+    private int putBlocking(ByteBuffer[] data, int length, int timeout) {
+        long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : Long.MAX_VALUE;
+        if (length <= writeBuffer.capacity()) {
+            while (!(writeOverflow.isEmpty() && writeBuffer.offer(data, length) >= 0)) {
+                if (!writeBuffer.awaitSpace(deadline))
+                    return 0;
+            }
+            return length;
+        }
+
+        int queued = 0;
+        ByteBuffer[] piece = new ByteBuffer[1];
+        for (ByteBuffer src : data) {
+            while (src.hasRemaining()) {
+                int n = Math.min(src.remaining(), writeBuffer.capacity());
+                piece[0] = src.duplicate();
+                piece[0].limit(src.position() + n);
+                while (!(writeOverflow.isEmpty() && writeBuffer.offer(piece, n) >= 0)) {
+                    if (!writeBuffer.awaitSpace(deadline))
+                        return queued;
                 }
+                src.position(src.position() + n);
+                queued += n;
             }
-            if (position <= -1) return new byte[0];
-            byte[] dst = Arrays.copyOfRange(buffer, 0, position);
-            position = -1;
-            return dst;
         }
+        return queued;
+    }
+
+    int getQueuedBytes() {
+        return writeBuffer.size() + writeOverflowBytes.get();
+    }
+
+    byte[] peekWriteOverflow() {
+        return writeOverflow.peek();
+    }
+
+    void pollWriteOverflow() {
+        byte[] segment = writeOverflow.poll();
+        if (segment != null) {
+            writeOverflowBytes.addAndGet(-segment.length);
+            writeBuffer.wakeProducers();
+        }
+    }
 
-        public synchronized void reset() {
-            position = -1;
+    void resetWriteBuffer() {
+        writeBuffer.reset();
+        writeOverflow.clear();
+        writeOverflowBytes.set(0);
+        writeTracker.failAll(new IOException("Device closed before the data was sent"));
+    }
+
+    SerialBufferPool getReadPool() {
+        synchronized (this) {
+            if (readPool == null)
+                readPool = new SerialBufferPool(SerialBufferPool.DEFAULT_POOL_SIZE, readChunkSize);
+            return readPool;
         }
     }
 
+    /*
+     * Largest IN transfer the device may use, the read pool hands out chunks of that size
+     */
+    void setReadChunkSize(int size) {
+        synchronized (this) {
+            readChunkSize = size;
+            if (readPool != null)
+                readPool.setChunkSize(size);
+        }
+    }
+
+    byte[] getBufferCompatible() {
+        return readBuffer_compatible;
+    }
+
+    byte[] getDataReceivedCompatible(int numberBytes) {
+        return Arrays.copyOfRange(readBuffer_compatible, 0, numberBytes);
+    }
 }
@@ -0,0 +1,162 @@
+package com.perpule.serialcommunication.usbserial;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of receive buffers for consumers that process data away from the USB thread.
+ *
+ * A {@link Chunk} handed to a {@link UsbSerialInterface.UsbReadChunkCallback} is owned by the callback, it goes
+ * back to the pool when {@link Chunk#release()} has been called once for the initial reference and once for
+ * every {@link Chunk#retain()}. The pool recycles the storage of released chunks, every acquire hands out a new
+ * Chunk over it, so a release through a stale reference fails on its own chunk instead of corrupting the next owner.
+ * When the pool is empty new storage is allocated (a miss), when it is full released storage is left to the garbage
+ * collector. Storage follows the largest IN transfer of the device, smaller blocks are let go as they are released.
+ */
+public class SerialBufferPool {
+    static final int DEFAULT_POOL_SIZE = 32;
+
+    private volatile int chunkSize;
+    private final ArrayBlockingQueue<Block> blocks;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    SerialBufferPool(int poolSize, int chunkSize) {
+        this.chunkSize = chunkSize;
+        this.blocks = new ArrayBlockingQueue<>(poolSize);
+    }
+
+    /*
+     * Returns a chunk holding a copy of data (position to limit), data position is left untouched
+     */
+    Chunk acquire(ByteBuffer data) {
+        int length = data.remaining();
+        Block block = blocks.poll();
+        if (block != null && block.data.length >= length) {
+            hits.incrementAndGet();
+        } else {
+            // A block too small for this data still fits the next ones
+            if (block != null && block.data.length >= chunkSize)
+                blocks.offer(block);
+            misses.incrementAndGet();
+            block = new Block(Math.max(chunkSize, length));
+        }
+        int position = data.position();
+        data.get(block.data, 0, length);
+        data.position(position);
+        outstanding.incrementAndGet();
+        return new Chunk(this, block, length);
+    }
+
+    /*
+     * Called when the IN transfer size of the device changes, with the largest one it may use
+     */
+    void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    private void recycle(Block block) {
+        outstanding.decrementAndGet();
+        if (block.data.length >= chunkSize)
+            blocks.offer(block);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return chunks handed to callbacks and not released yet
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return released chunks whose storage is waiting in the pool
+     */
+    public int getAvailable() {
+        return blocks.size();
+    }
+
+    /*
+     * Storage of a chunk, recycled from one lease to the next
+     */
+    private static final class Block {
+        final byte[] data;
+        final ByteBuffer view;
+
+        Block(int size) {
+            this.data = new byte[size];
+            this.view = ByteBuffer.wrap(data).asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * Reference counted piece of received data, valid from offset 0 to {@link #length()} until it is released
+     */
+    public static class Chunk {
+        private final SerialBufferPool pool;
+        private final Block block;
+        private final int length;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private Chunk(SerialBufferPool pool, Block block, int length) {
+            this.pool = pool;
+            this.block = block;
+            this.length = length;
+        }
+
+        /**
+         * @return the storage of the chunk, it may be larger than {@link #length()} and is reused once released
+         */
+        public byte[] array() {
+            return block.data;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        /**
+         * @return read-only view of the data. The same view is returned on every call, it is not thread safe
+         * @throws IllegalStateException if the chunk has been released
+         */
+        public ByteBuffer buffer() {
+            if (references.get() <= 0)
+                throw new IllegalStateException("Chunk already released");
+            block.view.limit(length).position(0);
+            return block.view;
+        }
+
+        public Chunk retain() {
+            if (references.getAndIncrement() <= 0)
+                throw new IllegalStateException("Chunk already released");
+            return this;
+        }
+
+        /**
+         * @throws IllegalStateException if called more times than the chunk was retained, the storage already
+         *                               handed to another chunk is left alone
+         */
+        public void release() {
+            int remaining = references.decrementAndGet();
+            if (remaining == 0)
+                pool.recycle(block);
+            else if (remaining < 0)
+                throw new IllegalStateException("Chunk released too many times");
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.perpule.serialcommunication.usbserial;
+
+/**
+ * Immutable line configuration applied at once by {@link UsbSerialInterface#configure(SerialConfig)}.
+ *
+ * Values use the constants of {@link UsbSerialInterface}, derived configurations are built with the with* methods:
+ * <pre>
+ * SerialConfig cashAcceptor = SerialConfig.DEFAULT.withParity(UsbSerialInterface.PARITY_EVEN);
+ * </pre>
+ */
+public final class SerialConfig {
+    /** 9600 baud, 8 data bits, 1 stop bit, no parity, no flow control */
+    public static final SerialConfig DEFAULT = new SerialConfig(9600, UsbSerialInterface.DATA_BITS_8,
+            UsbSerialInterface.STOP_BITS_1, UsbSerialInterface.PARITY_NONE, UsbSerialInterface.FLOW_CONTROL_OFF);
+
+    private final int baudRate;
+    private final int dataBits;
+    private final int stopBits;
+    private final int parity;
+    private final int flowControl;
+    private final int frameSize;
+
+    public SerialConfig(int baudRate, int dataBits, int stopBits, int parity, int flowControl) {
+        this(baudRate, dataBits, stopBits, parity, flowControl, 0);
+    }
+
+    private SerialConfig(int baudRate, int dataBits, int stopBits, int parity, int flowControl, int frameSize) {
+        if (baudRate <= 0)
+            throw new IllegalArgumentException("Baud rate must be positive");
+        if (dataBits < UsbSerialInterface.DATA_BITS_5 || dataBits > UsbSerialInterface.DATA_BITS_8)
+            throw new IllegalArgumentException("Unknown data bits " + dataBits);
+        if (stopBits != UsbSerialInterface.STOP_BITS_1 && stopBits != UsbSerialInterface.STOP_BITS_15
+                && stopBits != UsbSerialInterface.STOP_BITS_2)
+            throw new IllegalArgumentException("Unknown stop bits " + stopBits);
+        if (parity < UsbSerialInterface.PARITY_NONE || parity > UsbSerialInterface.PARITY_SPACE)
+            throw new IllegalArgumentException("Unknown parity " + parity);
+        if (flowControl < UsbSerialInterface.FLOW_CONTROL_OFF || flowControl > UsbSerialInterface.FLOW_CONTROL_XON_XOFF)
+            throw new IllegalArgumentException("Unknown flow control " + flowControl);
+        if (frameSize < 0)
+            throw new IllegalArgumentException("Frame size must not be negative");
+        this.baudRate = baudRate;
+        this.dataBits = dataBits;
+        this.stopBits = stopBits;
+        this.parity = parity;
+        this.flowControl = flowControl;
+        this.frameSize = frameSize;
+    }
+
+    public int getBaudRate() {
+        return baudRate;
+    }
+
+    public int getDataBits() {
+        return dataBits;
+    }
+
+    public int getStopBits() {
+        return stopBits;
+    }
+
+    public int getParity() {
+        return parity;
+    }
+
+    public int getFlowControl() {
+        return flowControl;
+    }
+
+    /**
+     * @return typical size in bytes of the frames exchanged by the protocol, 0 if unknown
+     */
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    public SerialConfig withBaudRate(int baudRate) {
+        return new SerialConfig(baudRate, dataBits, stopBits, parity, flowControl, frameSize);
+    }
+
+    public SerialConfig withDataBits(int dataBits) {
+        return new SerialConfig(baudRate, dataBits, stopBits, parity, flowControl, frameSize);
+    }
+
+    public SerialConfig withStopBits(int stopBits) {
+        return new SerialConfig(baudRate, dataBits, stopBits, parity, flowControl, frameSize);
+    }
+
+    public SerialConfig withParity(int parity) {
+        return new SerialConfig(baudRate, dataBits, stopBits, parity, flowControl, frameSize);
+    }
+
+    public SerialConfig withFlowControl(int flowControl) {
+        return new SerialConfig(baudRate, dataBits, stopBits, parity, flowControl, frameSize);
+    }
+
+    /**
+     * Drivers may tune their latency to the frame size, for example the FTDI latency timer for frames that fit in one packet
+     *
+     * @param frameSize typical frame size in bytes, 0 if unknown
+     */
+    public SerialConfig withFrameSize(int frameSize) {
+        return new SerialConfig(baudRate, dataBits, stopBits, parity, flowControl, frameSize);
+    }
+
+    /*
+     * True if the data bits, stop bits or parity differ, the fields most chips set in a single transfer
+     */
+    boolean frameDiffers(SerialConfig other) {
+        return other == null || dataBits != other.dataBits || stopBits != other.stopBits || parity != other.parity;
+    }
+
+    /*
+     * Stop bits as encoded by CDC line coding and most vendor requests: 0 = 1, 1 = 1.5, 2 = 2
+     */
+    int getStopBitsCode() {
+        switch (stopBits) {
+            case UsbSerialInterface.STOP_BITS_15:
+                return 1;
+            case UsbSerialInterface.STOP_BITS_2:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof SerialConfig))
+            return false;
+        SerialConfig other = (SerialConfig) o;
+        return baudRate == other.baudRate && dataBits == other.dataBits && stopBits == other.stopBits
+                && parity == other.parity && flowControl == other.flowControl && frameSize == other.frameSize;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = baudRate;
+        result = 31 * result + dataBits;
+        result = 31 * result + stopBits;
+        result = 31 * result + parity;
+        result = 31 * result + flowControl;
+        result = 31 * result + frameSize;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "SerialConfig{" + baudRate + " baud, " + dataBits + " data bits, stop bits " + stopBits
+                + ", parity " + parity + ", flow control " + flowControl + ", frame size " + frameSize + "}";
+    }
+}
@@ -1,46 +1,173 @@
 package com.perpule.serialcommunication.usbserial;
 
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * InputStream over the asynchronous read path. Received data is kept in a primitive byte ring,
+ * reads copy as much as is available in one go instead of one byte per lock round trip.
+ */
+public class SerialInputStream extends InputStream implements UsbSerialInterface.UsbReadCallback,
+        UsbSerialInterface.UsbReadBufferCallback {
+    private static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
 
-public class SerialInputStream extends InputStream implements UsbSerialInterface.UsbReadCallback {
     protected final UsbSerialInterface device;
-    protected ArrayBlockingQueue data = new ArrayBlockingQueue<Integer>(256);
+
+    private final byte[] buffer;
+    private int head; // Next byte to read
+    private int count; // Bytes stored from head on
+    private int timeout; // Milliseconds, 0 waits forever
     private volatile boolean is_open;
 
     public SerialInputStream(UsbSerialInterface device) {
+        this(device, DEFAULT_BUFFER_SIZE);
+    }
+
+    public SerialInputStream(UsbSerialInterface device, int bufferSize) {
         this.device = device;
+        this.buffer = new byte[bufferSize];
         is_open = true;
-        device.read(this);
+        device.readBuffers(this);
+    }
+
+    /**
+     * @param timeout maximum time in milliseconds a read waits for data before throwing an
+     *                {@link InterruptedIOException}, 0 waits forever
+     */
+    public synchronized void setTimeout(int timeout) {
+        if (timeout < 0)
+            throw new IllegalArgumentException("Timeout must not be negative");
+        this.timeout = timeout;
+    }
+
+    public synchronized int getTimeout() {
+        return timeout;
     }
 
     @Override
-    public int read() {
-        while (is_open) {
-            try {
-                return (Integer) data.take();
-            } catch (InterruptedException e) {
-                // ignore, will be retried by while loop
-            }
-        }
-        return -1;
+    public synchronized int read() throws IOException {
+        if (!awaitData())
+            return -1;
+
+        int value = buffer[head] & 0xff;
+        take(1);
+        return value;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        if (len == 0)
+            return 0;
+        if (!awaitData())
+            return -1;
+
+        int n = Math.min(len, count);
+        int first = Math.min(n, buffer.length - head);
+        System.arraycopy(buffer, head, b, off, first);
+        if (first < n)
+            System.arraycopy(buffer, 0, b, off + first, n - first);
+        take(n);
+        return n;
+    }
+
+    @Override
+    public synchronized int available() {
+        return count;
+    }
+
+    @Override
+    public synchronized long skip(long n) throws IOException {
+        if (n <= 0 || !awaitData())
+            return 0;
+
+        int skipped = (int) Math.min(n, count);
+        take(skipped);
+        return skipped;
     }
 
+    @Override
     public void close() {
-        is_open = false;
-        try {
-            data.put(-1);
-        } catch (InterruptedException ignored) {
+        synchronized (this) {
+            is_open = false;
+            notifyAll();
         }
     }
 
+    @Override
     public void onReceivedData(byte[] new_data) {
-        for (byte b : new_data) {
+        synchronized (this) {
+            int offset = 0;
+            while (offset < new_data.length && awaitSpace()) {
+                int tail = (head + count) % buffer.length;
+                int n = Math.min(new_data.length - offset, Math.min(buffer.length - count, buffer.length - tail));
+                System.arraycopy(new_data, offset, buffer, tail, n);
+                offset += n;
+                count += n;
+                notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void onReceivedData(ByteBuffer new_data) {
+        synchronized (this) {
+            while (new_data.hasRemaining() && awaitSpace()) {
+                int tail = (head + count) % buffer.length;
+                int n = Math.min(new_data.remaining(), Math.min(buffer.length - count, buffer.length - tail));
+                new_data.get(buffer, tail, n);
+                count += n;
+                notifyAll();
+            }
+        }
+    }
+
+    private void take(int n) {
+        head = (head + n) % buffer.length;
+        count -= n;
+        notifyAll();
+    }
+
+    /*
+     * Waits until there is something to read. Returns false when the stream was closed
+     */
+    private boolean awaitData() throws InterruptedIOException {
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+        while (count == 0) {
+            if (!is_open)
+                return false;
+            long wait = 0;
+            if (deadline != 0) {
+                wait = deadline - System.currentTimeMillis();
+                if (wait <= 0)
+                    throw new InterruptedIOException("Read timed out");
+            }
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                // ignore, will be retried by while loop
+            }
+        }
+        return true;
+    }
+
+    /*
+     * The USB thread waits for readers when the ring is full, bytes are dropped only once the stream is closed
+     */
+    private boolean awaitSpace() {
+        while (count == buffer.length) {
+            if (!is_open)
+                return false;
             try {
-                data.put(((int) b) & 0xff);
+                wait();
             } catch (InterruptedException e) {
                 // ignore, possibly losing bytes when buffer is full
+                return false;
             }
         }
+        return is_open;
     }
 }
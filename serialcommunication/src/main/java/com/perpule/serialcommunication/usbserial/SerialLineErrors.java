@@ -0,0 +1,119 @@
+package com.perpule.serialcommunication.usbserial;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Line error counters of a device and the coalescing behind its error events.
+ *
+ * The chip reports its error bits on every status poll or transfer. Every report with a bit set is counted as a new
+ * occurrence, or as many as the packets of a transfer that flagged it, so an error storm shows in the counters. Events
+ * are coalesced to at most one per error type and event interval, each carrying the occurrences since the previous one.
+ */
+public class SerialLineErrors {
+    public static final int PARITY = 0;
+    public static final int FRAMING = 1;
+    public static final int OVERRUN = 2;
+    public static final int BREAK = 3;
+    private static final int TYPES = 4;
+
+    // Error bits of update()
+    static final int PARITY_BIT = 1 << PARITY;
+    static final int FRAMING_BIT = 1 << FRAMING;
+    static final int OVERRUN_BIT = 1 << OVERRUN;
+    static final int BREAK_BIT = 1 << BREAK;
+
+    static final int DEFAULT_EVENT_INTERVAL = 100; // ms
+
+    /*
+     * Receives the coalesced events, on the thread reporting the errors
+     */
+    interface Listener {
+        void onLineError(int error, int count);
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(TYPES);
+
+    // Reporter side, a device reports from a single thread
+    private int present; // Error bits set in the last report
+    private int pendingMask; // Types with occurrences not notified yet
+    private final int[] pending = new int[TYPES];
+    private final long[] lastEvent = new long[TYPES];
+    private int notifiedMask; // Types that had an event already, the first one is never held back
+    private volatile long eventInterval = TimeUnit.MILLISECONDS.toNanos(DEFAULT_EVENT_INTERVAL);
+    private volatile Listener listener;
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    void setEventInterval(int interval) {
+        if (interval < 0)
+            throw new IllegalArgumentException("Event interval must not be negative");
+        eventInterval = TimeUnit.MILLISECONDS.toNanos(interval);
+    }
+
+    /*
+     * One report of the error bits currently set, one occurrence each. Returns true if an error started with it, an
+     * error already set in the previous report is not a new condition for the poll cadence
+     */
+    boolean update(int errors) {
+        return update(errors, null);
+    }
+
+    /*
+     * Same as update(int) with the occurrences of each error type, indexed by PARITY to BREAK
+     */
+    boolean update(int errors, int[] occurrences) {
+        if (errors == 0 && present == 0 && pendingMask == 0)
+            return false; // Clean line, the usual case
+
+        int started = errors & ~present;
+        present = errors;
+        long now = System.nanoTime();
+        for (int type = 0; type < TYPES; type++) {
+            int bit = 1 << type;
+            if ((errors & bit) != 0) {
+                int n = occurrences != null ? Math.max(1, occurrences[type]) : 1;
+                counts.addAndGet(type, n);
+                pending[type] += n;
+                pendingMask |= bit;
+            }
+            if ((pendingMask & bit) != 0 && ((notifiedMask & bit) == 0 || now - lastEvent[type] >= eventInterval)) {
+                notifiedMask |= bit;
+                int count = pending[type];
+                pending[type] = 0;
+                pendingMask &= ~bit;
+                lastEvent[type] = now;
+                Listener listener = this.listener;
+                if (listener != null)
+                    listener.onLineError(type, count);
+            }
+        }
+        return started != 0;
+    }
+
+    /**
+     * @param error one of {@link #PARITY}, {@link #FRAMING}, {@link #OVERRUN} or {@link #BREAK}
+     * @return occurrences of the error since the device was created
+     */
+    public long getCount(int error) {
+        return counts.get(error);
+    }
+
+    public long getParityErrors() {
+        return counts.get(PARITY);
+    }
+
+    public long getFramingErrors() {
+        return counts.get(FRAMING);
+    }
+
+    public long getOverrunErrors() {
+        return counts.get(OVERRUN);
+    }
+
+    public long getBreakInterrupts() {
+        return counts.get(BREAK);
+    }
+}
@@ -0,0 +1,230 @@
+package com.perpule.serialcommunication.usbserial;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OutputStream over the asynchronous write path that coalesces small writes.
+ *
+ * Bytes are collected and handed to the device as one write when {@link #flush()} is called, when the
+ * flush threshold is reached or, if a linger time is set, once the oldest buffered byte has waited that long.
+ * A write that finds no room in the device write buffer within {@link #FLUSH_TIMEOUT} ms fails, so a device that
+ * stopped sending can not hang the stream.
+ */
+public class SerialOutputStream extends OutputStream {
+    private static final int DEFAULT_FLUSH_THRESHOLD = 512;
+    static final int FLUSH_TIMEOUT = UsbSerialDevice.USB_TIMEOUT;
+
+    protected final UsbSerialInterface device;
+
+    // Held across every device write so flushes reach the device in order, taken before the stream monitor. The
+    // monitor only guards the state below, the linger thread waits on it without holding flushLock
+    private final Object flushLock = new Object();
+
+    private final byte[] buffer; // Written with flushLock held
+    private final ByteBuffer[] flushed; // Wraps buffer, the device copies it before write() returns
+    private int count;
+    private long lingerNanos; // 0 disables the linger flush
+    private long firstWriteTime; // System.nanoTime() of the oldest buffered byte
+    private LingerThread lingerThread;
+    private IOException lingerError; // Failure of a linger flush, thrown by the next call
+    private boolean is_open;
+
+    public SerialOutputStream(UsbSerialInterface device) {
+        this(device, DEFAULT_FLUSH_THRESHOLD);
+    }
+
+    /**
+     * @param flushThreshold buffered bytes that trigger a flush
+     */
+    public SerialOutputStream(UsbSerialInterface device, int flushThreshold) {
+        if (flushThreshold <= 0)
+            throw new IllegalArgumentException("Flush threshold must be positive");
+        this.device = device;
+        this.buffer = new byte[flushThreshold];
+        this.flushed = new ByteBuffer[]{ByteBuffer.wrap(buffer)};
+        this.is_open = true;
+    }
+
+    /**
+     * @param micros maximum time in microseconds a byte stays buffered before it is flushed, 0 disables it. The linger
+     *               thread waits in whole milliseconds, shorter times are rounded up to the next millisecond
+     */
+    public synchronized void setLinger(long micros) {
+        if (micros < 0)
+            throw new IllegalArgumentException("Linger must not be negative");
+        lingerNanos = TimeUnit.MICROSECONDS.toNanos(micros);
+        if (lingerNanos > 0 && lingerThread == null) {
+            lingerThread = new LingerThread();
+            lingerThread.start();
+        }
+        notifyAll();
+    }
+
+    public synchronized long getLinger() {
+        return TimeUnit.NANOSECONDS.toMicros(lingerNanos);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        synchronized (flushLock) {
+            ensureOpen();
+            buffer[count] = (byte) b; // flushBuffer() never leaves the buffer full
+            append(1);
+            if (count == buffer.length)
+                flushBuffer();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        synchronized (flushLock) {
+            ensureOpen();
+            while (len > 0) {
+                int start = count;
+                int n = append(len);
+                System.arraycopy(b, off, buffer, start, n);
+                off += n;
+                len -= n;
+                if (count == buffer.length)
+                    flushBuffer();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        synchronized (flushLock) {
+            ensureOpen();
+            flushBuffer();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (flushLock) {
+            synchronized (this) {
+                if (!is_open)
+                    return;
+            }
+            try {
+                throwLingerError();
+                flushBuffer();
+            } finally {
+                synchronized (this) {
+                    is_open = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /*
+     * Reserves up to length bytes at the end of the buffer and returns how many, starts the linger clock when the
+     * buffer goes from empty to non empty. Called with flushLock held
+     */
+    private synchronized int append(int length) {
+        int n = Math.min(length, buffer.length - count);
+        if (count == 0 && n > 0) {
+            firstWriteTime = System.nanoTime();
+            if (lingerThread != null)
+                notifyAll();
+        }
+        count += n;
+        return n;
+    }
+
+    /*
+     * Called with flushLock held and the monitor released, the device write may wait up to FLUSH_TIMEOUT
+     */
+    private void flushBuffer() throws IOException {
+        int length;
+        synchronized (this) {
+            length = count;
+            count = 0;
+        }
+        if (length == 0)
+            return;
+        flushed[0].clear();
+        flushed[0].limit(length);
+        int queued = device.write(flushed, UsbSerialInterface.WRITE_OVERFLOW_BLOCK, FLUSH_TIMEOUT);
+        if (queued < 0)
+            throw new IOException("Device is not open in asynchronous mode");
+        if (queued != length)
+            throw new IOException("Only " + queued + " of " + length + " bytes were queued within " + FLUSH_TIMEOUT + " ms");
+    }
+
+    private void ensureOpen() throws IOException {
+        synchronized (this) {
+            if (!is_open)
+                throw new IOException("Stream closed");
+        }
+        throwLingerError();
+    }
+
+    /*
+     * A linger flush has nobody to report to, its error goes to the next write(), flush() or close()
+     */
+    private synchronized void throwLingerError() throws IOException {
+        IOException error = lingerError;
+        if (error != null) {
+            lingerError = null;
+            throw error;
+        }
+    }
+
+    /*
+     * Returns once the oldest buffered byte has been waiting for the linger time, false once the stream is closed
+     */
+    private synchronized boolean awaitLinger() throws InterruptedException {
+        while (is_open) {
+            long remaining = count > 0 && lingerNanos > 0 ? firstWriteTime + lingerNanos - System.nanoTime() : 0;
+            if (count == 0 || lingerNanos == 0)
+                wait();
+            else if (remaining > 0)
+                wait(remaining / 1000000, (int) (remaining % 1000000));
+            else
+                return true;
+        }
+        return false;
+    }
+
+    private synchronized boolean isLingerDue() {
+        return is_open && count > 0 && lingerNanos > 0 && System.nanoTime() - firstWriteTime >= lingerNanos;
+    }
+
+    /*
+     * Flushes the buffer once the oldest byte has been waiting for the linger time
+     */
+    private class LingerThread extends Thread {
+        LingerThread() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (awaitLinger()) {
+                    synchronized (flushLock) {
+                        // A write or flush may have emptied the buffer in between
+                        if (!isLingerDue())
+                            continue;
+                        try {
+                            flushBuffer();
+                        } catch (IOException e) {
+                            synchronized (SerialOutputStream.this) {
+                                lingerError = e;
+                            }
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Stream abandoned
+            }
+        }
+    }
+}
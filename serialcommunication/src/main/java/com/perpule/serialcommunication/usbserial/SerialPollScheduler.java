@@ -0,0 +1,313 @@
+package com.perpule.serialcommunication.usbserial;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single thread polling the status of every open device that needs it.
+ *
+ * Tasks live in a hashed timer wheel of {@link #WHEEL_SIZE} slots of {@link #TICK} milliseconds, a task due in more
+ * than one revolution waits for its remaining rounds in its slot. The thread sleeps until the next occupied slot,
+ * for good while no task is scheduled. Polls run one after the other on the scheduler thread, so a poll should not
+ * do more transfers than its listeners need.
+ *
+ * The interval of a task adapts between its bounds: it drops to the minimum when a poll sees a change, while the
+ * task reports pending work or when it is boosted, stays there for {@link #HOLD_POLLS} quiet polls and then doubles
+ * after every quiet poll up to the maximum. A poll that throws is logged and its task goes straight to the maximum,
+ * the other tasks are not affected.
+ */
+final class SerialPollScheduler {
+    private static final String TAG = SerialPollScheduler.class.getSimpleName();
+
+    static final long TICK = 1; // ms
+    private static final int WHEEL_SIZE = 256;
+    private static final int MASK = WHEEL_SIZE - 1;
+
+    static final int HOLD_POLLS = 8;
+
+    private static SerialPollScheduler instance;
+
+    /*
+     * Poll of one device. Scheduling, cancelling and running a task are serialized by the scheduler
+     */
+    abstract static class PollTask {
+        private volatile long minInterval; // ms
+        private volatile long maxInterval;
+        private volatile long interval;
+        private int holdPolls; // Quiet polls left before backing off
+        private volatile long polls;
+        private volatile long changes;
+
+        private int rounds;
+        private PollTask prev;
+        private PollTask next;
+        private int slot = -1; // -1 while not in the wheel
+        private boolean scheduled; // Scheduled by a device, stays set while the task runs
+        private boolean running;
+
+        PollTask(long minInterval, long maxInterval) {
+            setIntervalBounds(minInterval, maxInterval);
+            this.interval = this.minInterval;
+        }
+
+        /*
+         * Returns true when the poll saw a line change or an error
+         */
+        abstract boolean poll();
+
+        /*
+         * Work in progress that calls for the fastest cadence, such as queued writes
+         */
+        boolean isBusy() {
+            return false;
+        }
+
+        final void setIntervalBounds(long minInterval, long maxInterval) {
+            if (minInterval < TICK || maxInterval < minInterval)
+                throw new IllegalArgumentException("Poll interval bounds must satisfy " + TICK + " <= min <= max");
+            this.minInterval = minInterval;
+            this.maxInterval = maxInterval;
+        }
+
+        long getInterval() {
+            return interval;
+        }
+
+        long getPolls() {
+            return polls;
+        }
+
+        long getChanges() {
+            return changes;
+        }
+    }
+
+    private final PollTask[] wheel = new PollTask[WHEEL_SIZE];
+    private int size; // Tasks in the wheel or running
+    private long tick; // Last tick processed
+    private long startTime;
+    private PollThread thread;
+
+    private SerialPollScheduler() {
+    }
+
+    static synchronized SerialPollScheduler getInstance() {
+        if (instance == null)
+            instance = new SerialPollScheduler();
+        return instance;
+    }
+
+    /*
+     * Starts polling task at its minimum interval, does nothing if it is already scheduled
+     */
+    synchronized void schedule(PollTask task) {
+        if (task.scheduled)
+            return;
+
+        task.scheduled = true;
+        task.interval = task.minInterval;
+        task.holdPolls = HOLD_POLLS;
+        size++;
+        if (!task.running)
+            insert(task);
+
+        if (thread == null) {
+            startTime = System.nanoTime() - tick * TICK * 1000000;
+            thread = new PollThread();
+            thread.startAndAwait();
+        } else {
+            notifyAll();
+        }
+    }
+
+    /*
+     * Stops polling task. Returns once a poll of task in progress has finished, unless called from that poll
+     */
+    synchronized void cancel(PollTask task) {
+        if (task.scheduled) {
+            task.scheduled = false;
+            size--;
+            if (task.slot >= 0)
+                remove(task);
+        }
+
+        boolean interrupted = false;
+        while (task.running && Thread.currentThread() != thread) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /*
+     * Brings task back to its minimum interval, cheap when it is already there
+     */
+    void boost(PollTask task) {
+        if (task.interval == task.minInterval)
+            return;
+        synchronized (this) {
+            task.interval = task.minInterval;
+            task.holdPolls = HOLD_POLLS;
+            if (task.slot >= 0) {
+                remove(task);
+                insert(task);
+                notifyAll();
+            }
+        }
+    }
+
+    private void insert(PollTask task) {
+        long ticks = Math.max(1, (task.interval + TICK - 1) / TICK);
+        int slot = (int) ((tick + ticks) & MASK);
+        task.rounds = (int) ((ticks - 1) / WHEEL_SIZE);
+        task.slot = slot;
+        task.prev = null;
+        task.next = wheel[slot];
+        if (task.next != null)
+            task.next.prev = task;
+        wheel[slot] = task;
+    }
+
+    private void remove(PollTask task) {
+        if (task.prev != null)
+            task.prev.next = task.next;
+        else
+            wheel[task.slot] = task.next;
+        if (task.next != null)
+            task.next.prev = task.prev;
+        task.prev = null;
+        task.next = null;
+        task.slot = -1;
+    }
+
+    /*
+     * Takes the tasks due in the slots passed since the last call, waits while nothing is scheduled
+     */
+    private synchronized void advance(List<PollTask> due) throws InterruptedException {
+        while (size == 0) {
+            wait();
+            // Ticks are counted from the end of the idle period, otherwise the whole gap would be replayed
+            startTime = System.nanoTime() - tick * TICK * 1000000;
+        }
+
+        long now = (System.nanoTime() - startTime) / 1000000 / TICK;
+        while (tick < now) {
+            tick++;
+            PollTask task = wheel[(int) (tick & MASK)];
+            while (task != null) {
+                PollTask next = task.next;
+                if (task.rounds == 0) {
+                    remove(task);
+                    task.running = true;
+                    due.add(task);
+                } else {
+                    task.rounds--;
+                }
+                task = next;
+            }
+        }
+    }
+
+    /*
+     * A task cancelled after it was taken from the wheel is not polled
+     */
+    private synchronized boolean beginPoll(PollTask task) {
+        if (task.scheduled)
+            return true;
+        task.running = false;
+        notifyAll();
+        return false;
+    }
+
+    private synchronized void rescheduleAfterRun(PollTask task, boolean changed, boolean failed) {
+        task.running = false;
+        notifyAll(); // cancel() may be waiting for this poll
+        task.polls++;
+        if (changed)
+            task.changes++;
+
+        if (failed) {
+            task.interval = task.maxInterval;
+            task.holdPolls = 0;
+        } else if (changed || task.isBusy()) {
+            task.interval = task.minInterval;
+            task.holdPolls = HOLD_POLLS;
+        } else if (task.holdPolls > 0) {
+            task.holdPolls--;
+        } else {
+            task.interval = Math.min(task.interval * 2, task.maxInterval);
+        }
+
+        if (task.scheduled)
+            insert(task);
+    }
+
+    /*
+     * Sleeps until the next occupied slot, schedule() and boost() wake the thread up to look again
+     */
+    private synchronized void awaitNextSlot() throws InterruptedException {
+        int ticks = 1;
+        while (ticks < WHEEL_SIZE && wheel[(int) ((tick + ticks) & MASK)] == null)
+            ticks++;
+        long elapsed = (System.nanoTime() - startTime) / 1000000;
+        long remaining = (tick + ticks) * TICK - elapsed;
+        if (remaining > 0 && size > 0)
+            wait(remaining);
+    }
+
+    /*
+     * The thread only exits when interrupted, the next schedule() starts a new one
+     */
+    private synchronized void onThreadExit() {
+        thread = null;
+    }
+
+    private class PollThread extends SerialThread {
+        PollThread() {
+            setDaemon(true);
+        }
+
+        @Override
+        void work() {
+            try {
+                loop();
+            } finally {
+                onThreadExit();
+            }
+        }
+
+        private void loop() {
+            List<PollTask> due = new ArrayList<>();
+            while (isRunning()) {
+                try {
+                    due.clear();
+                    advance(due);
+                    for (PollTask task : due) {
+                        if (!beginPoll(task))
+                            continue;
+                        boolean changed = false;
+                        boolean failed = false;
+                        try {
+                            changed = task.poll();
+                        } catch (RuntimeException e) {
+                            // The thread is shared by every device, one failing poll must not stop the others
+                            Log.e(TAG, "Status poll failed", e);
+                            failed = true;
+                        } finally {
+                            rescheduleAfterRun(task, changed, failed);
+                        }
+                    }
+                    awaitNextSlot();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
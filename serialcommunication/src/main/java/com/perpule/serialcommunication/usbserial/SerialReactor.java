@@ -0,0 +1,117 @@
+package com.perpule.serialcommunication.usbserial;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbRequest;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single thread driving requestWait() for every device opened in reactor mode on a connection.
+ *
+ * Requests are tagged with a {@link Completion} as client data, the reactor hands each returned request to its tag.
+ * requestWait() only sees the requests of its own connection and has no timeout before API 26, so there is one
+ * reactor per {@link UsbDeviceConnection}, shared by all the interfaces opened on it and kept alive while any of
+ * them is open. Devices opened on connections of their own each bring one reactor thread, only the interfaces of a
+ * composite device share one. Requests that outlive their deadline are cancelled from the {@link SerialPollScheduler}
+ * thread.
+ */
+final class SerialReactor extends SerialThread {
+    private static final Map<UsbDeviceConnection, SerialReactor> reactors = new HashMap<>();
+
+    /*
+     * Client data of the requests queued on a reactor, runs on the reactor thread
+     */
+    interface Completion {
+        void onRequestCompleted(UsbRequest request);
+    }
+
+    private final UsbDeviceConnection connection;
+    private int users; // Guarded by reactors
+
+    // requestWait() blocks for good with nothing queued, the reactor waits on this monitor instead
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Object idleLock = new Object();
+
+    private SerialReactor(UsbDeviceConnection connection) {
+        this.connection = connection;
+        setDaemon(true);
+    }
+
+    /*
+     * Returns the reactor of the connection, started on first use. Every call must be paired with release()
+     */
+    static SerialReactor acquire(UsbDeviceConnection connection) {
+        synchronized (reactors) {
+            SerialReactor reactor = reactors.get(connection);
+            if (reactor == null) {
+                reactor = new SerialReactor(connection);
+                reactors.put(connection, reactor);
+                reactor.startAndAwait();
+            }
+            reactor.users++;
+            return reactor;
+        }
+    }
+
+    /*
+     * The last user stops the thread. Requests of the user must not be in flight anymore
+     */
+    void release() {
+        synchronized (reactors) {
+            if (--users > 0)
+                return;
+            reactors.remove(connection);
+        }
+        stopAndJoin(UsbSerialDevice.USB_TIMEOUT);
+    }
+
+    /*
+     * Must be called after each successful UsbRequest.queue() of a tagged request
+     */
+    void onQueued() {
+        if (inFlight.getAndIncrement() == 0) {
+            synchronized (idleLock) {
+                idleLock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    void work() {
+        while (isRunning() || inFlight.get() > 0) {
+            if (inFlight.get() == 0) {
+                synchronized (idleLock) {
+                    while (isRunning() && inFlight.get() == 0) {
+                        try {
+                            idleLock.wait();
+                        } catch (InterruptedException e) {
+                            // stop requested, checked by the loop
+                        }
+                    }
+                }
+                continue;
+            }
+
+            UsbRequest request = connection.requestWait();
+            if (request == null) {
+                if (!isRunning())
+                    break;
+                continue;
+            }
+            Object tag = request.getClientData();
+            if (tag instanceof Completion) {
+                inFlight.decrementAndGet();
+                ((Completion) tag).onRequestCompleted(request);
+            }
+        }
+    }
+
+    @Override
+    void wakeUp() {
+        synchronized (idleLock) {
+            idleLock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.perpule.serialcommunication.usbserial;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves read callbacks off the USB thread.
+ *
+ * Each completion is copied into a pooled {@link SerialBufferPool.Chunk} and put in a bounded queue, the USB thread
+ * queues its next request right away. The queue is drained in order by a dedicated thread or, if one is given, by
+ * tasks submitted to an {@link Executor} (one task at a time, so callbacks never run concurrently). When the queue is
+ * full the overflow policy decides what happens to the new completion.
+ */
+public class SerialReadDispatcher implements UsbSerialInterface.UsbReadBufferCallback {
+    /** Drops the completion that does not fit */
+    public static final int OVERFLOW_DROP_NEWEST = 0;
+    /** Drops the oldest queued completion to make room */
+    public static final int OVERFLOW_DROP_OLDEST = 1;
+    /** Holds the USB thread until the consumer makes room, the device FIFO takes the backlog */
+    public static final int OVERFLOW_BLOCK = 2;
+
+    // A USB thread held by OVERFLOW_BLOCK checks this often whether the dispatcher has been stopped, in ms
+    private static final long BLOCK_CHECK_INTERVAL = 10;
+
+    private final SerialBufferPool pool;
+    private final ArrayBlockingQueue<SerialBufferPool.Chunk> queue;
+    private final int overflowPolicy;
+    private final Executor executor;
+
+    private volatile UsbSerialInterface.UsbReadChunkCallback callback;
+    private volatile boolean stopped; // Completions are refused until the next start()
+    private DispatchThread dispatchThread;
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private volatile int maxDepth;
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    SerialReadDispatcher(SerialBufferPool pool, int capacity, int overflowPolicy, Executor executor) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Dispatch queue capacity must be positive");
+        if (overflowPolicy < OVERFLOW_DROP_NEWEST || overflowPolicy > OVERFLOW_BLOCK)
+            throw new IllegalArgumentException("Unknown overflow policy " + overflowPolicy);
+        this.pool = pool;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.executor = executor;
+    }
+
+    /*
+     * Sets the consumer callback, the dispatch thread is started the first time
+     */
+    synchronized void start(UsbSerialInterface.UsbReadChunkCallback callback) {
+        this.callback = callback;
+        stopped = false;
+        if (executor == null && dispatchThread == null) {
+            dispatchThread = new DispatchThread();
+            dispatchThread.startAndAwait();
+        }
+    }
+
+    /*
+     * Stops the dispatch thread and waits for the callback in progress, completions still queued are released
+     * without being delivered. A USB thread held by OVERFLOW_BLOCK gives up its completion
+     */
+    synchronized void stop() {
+        stopped = true;
+        if (dispatchThread != null) {
+            dispatchThread.stopAndJoin(UsbSerialDevice.USB_TIMEOUT);
+            dispatchThread = null;
+        }
+        releaseQueued();
+    }
+
+    /*
+     * USB thread side
+     */
+    @Override
+    public void onReceivedData(ByteBuffer data) {
+        if (stopped)
+            return;
+        SerialBufferPool.Chunk chunk = pool.acquire(data);
+        if (!enqueue(chunk)) {
+            chunk.release();
+            dropped.incrementAndGet();
+            return;
+        }
+        if (stopped) {
+            // stop() may have emptied the queue before this completion got in
+            releaseQueued();
+            return;
+        }
+
+        int depth = queue.size();
+        if (depth > maxDepth)
+            maxDepth = depth; // Single producer, no CAS needed
+
+        if (executor != null && drainScheduled.compareAndSet(false, true))
+            executor.execute(drainTask);
+    }
+
+    private boolean enqueue(SerialBufferPool.Chunk chunk) {
+        if (queue.offer(chunk))
+            return true;
+
+        switch (overflowPolicy) {
+            case OVERFLOW_DROP_OLDEST:
+                while (!queue.offer(chunk)) {
+                    SerialBufferPool.Chunk oldest = queue.poll();
+                    if (oldest != null) {
+                        oldest.release();
+                        dropped.incrementAndGet();
+                    }
+                }
+                return true;
+            case OVERFLOW_BLOCK:
+                // Nothing drains the queue once stopped, the USB thread must not wait for it forever
+                try {
+                    while (!stopped) {
+                        if (queue.offer(chunk, BLOCK_CHECK_INTERVAL, TimeUnit.MILLISECONDS))
+                            return true;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /*
+     * Executor side. Runs until the queue is empty, then checks again after giving up the
+     * schedule flag so a completion published in between is not left behind
+     */
+    private void drain() {
+        do {
+            SerialBufferPool.Chunk chunk;
+            while (!stopped && (chunk = queue.poll()) != null)
+                deliver(chunk);
+            drainScheduled.set(false);
+        } while (!stopped && !queue.isEmpty() && drainScheduled.compareAndSet(false, true));
+    }
+
+    private void deliver(SerialBufferPool.Chunk chunk) {
+        UsbSerialInterface.UsbReadChunkCallback callback = this.callback;
+        dispatched.incrementAndGet();
+        if (callback != null)
+            callback.onReceivedData(chunk); // The callback owns the chunk from here
+        else
+            chunk.release();
+    }
+
+    private void releaseQueued() {
+        SerialBufferPool.Chunk chunk;
+        while ((chunk = queue.poll()) != null)
+            chunk.release();
+    }
+
+    /**
+     * @return completions waiting for the consumer
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return highest queue depth seen so far
+     */
+    public int getMaxQueueDepth() {
+        return maxDepth;
+    }
+
+    public int getQueueCapacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    /**
+     * @return completions handed to the callback
+     */
+    public long getDispatched() {
+        return dispatched.get();
+    }
+
+    /**
+     * @return completions discarded because the queue was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /*
+     * Consumer thread used when no executor is given. It is only interrupted while waiting for the queue, never
+     * while running the callback
+     */
+    private class DispatchThread extends SerialThread {
+        private final Object waitLock = new Object();
+        private boolean waiting; // Guarded by waitLock
+
+        DispatchThread() {
+            setDaemon(true);
+        }
+
+        @Override
+        void work() {
+            while (true) {
+                synchronized (waitLock) {
+                    if (!isRunning())
+                        return;
+                    waiting = true;
+                }
+                SerialBufferPool.Chunk chunk;
+                try {
+                    chunk = queue.take();
+                } catch (InterruptedException e) {
+                    chunk = null; // stop requested, checked by the loop
+                }
+                synchronized (waitLock) {
+                    waiting = false;
+                    Thread.interrupted(); // A wake up racing with take() returning must not reach the callback
+                }
+                if (chunk != null)
+                    deliver(chunk);
+            }
+        }
+
+        @Override
+        void wakeUp() {
+            synchronized (waitLock) {
+                if (waiting)
+                    interrupt();
+            }
+        }
+    }
+}
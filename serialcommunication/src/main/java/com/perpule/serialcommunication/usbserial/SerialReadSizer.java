@@ -0,0 +1,122 @@
+package com.perpule.serialcommunication.usbserial;
+
+/**
+ * Number of bytes requested by each IN transfer of a device, either fixed or adapted to the line.
+ *
+ * In adaptive mode the size starts at about {@link #TARGET_LATENCY} ms of data at the current baud rate and moves with
+ * the completions: a transfer filled to its last byte doubles it, up to {@link #MAX_LATENCY} ms of data, and a run of
+ * {@link #SHRINK_AFTER} transfers using a quarter of it or less halves it, down to one packet. Sizes are always whole
+ * packets of the IN endpoint, a device may send a full packet at any time.
+ *
+ * The size is read by the thread queuing the requests, the other methods may be called from any thread.
+ */
+final class SerialReadSizer {
+    static final int ADAPTIVE = 0;
+    static final int MAX_SIZE = 16 * 1024; // UsbRequest.queue() does not take more on android < 9
+
+    private static final int TARGET_LATENCY = 10; // ms of data requested once the baud rate is known
+    private static final int MAX_LATENCY = 100; // ms of data a request may grow to
+    private static final int SHRINK_AFTER = 16;
+    private static final int DEFAULT_PACKET_SIZE = 64;
+
+    private int requestedSize = SerialBuffer.DEFAULT_READ_BUFFER_SIZE; // ADAPTIVE or set by the user
+    private int packetSize = DEFAULT_PACKET_SIZE;
+    private int baudRate = SerialConfig.DEFAULT.getBaudRate();
+    private int maxSize;
+    private int shortTransfers;
+    private volatile int size;
+
+    SerialReadSizer() {
+        resize();
+    }
+
+    /*
+     * ADAPTIVE or a size between 1 and MAX_SIZE, rounded up to whole packets
+     */
+    synchronized void setRequestedSize(int requestedSize) {
+        if (requestedSize < ADAPTIVE || requestedSize > MAX_SIZE)
+            throw new IllegalArgumentException("Read buffer size must be between 1 and " + MAX_SIZE + ", or adaptive");
+        this.requestedSize = requestedSize;
+        resize();
+    }
+
+    synchronized boolean isAdaptive() {
+        return requestedSize == ADAPTIVE;
+    }
+
+    /*
+     * Called when the device is opened with the wMaxPacketSize of its IN endpoint and the baud rate it is set up with
+     */
+    synchronized void reset(int packetSize, int baudRate) {
+        this.packetSize = packetSize > 0 ? packetSize : DEFAULT_PACKET_SIZE;
+        this.baudRate = baudRate;
+        resize();
+    }
+
+    synchronized void setBaudRate(int baudRate) {
+        if (baudRate <= 0 || baudRate == this.baudRate)
+            return;
+        this.baudRate = baudRate;
+        resize();
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    /*
+     * Largest size the transfers may grow to with the current settings
+     */
+    synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    /*
+     * length is the raw length of a completed transfer, status bytes included
+     */
+    synchronized void onCompleted(int length) {
+        if (requestedSize != ADAPTIVE)
+            return;
+        int current = size;
+        if (length >= current) {
+            shortTransfers = 0;
+            if (current < maxSize)
+                size = Math.min(current * 2, maxSize);
+        } else if (length <= current / 4 && current > packetSize) {
+            if (++shortTransfers >= SHRINK_AFTER) {
+                shortTransfers = 0;
+                size = Math.max(roundUp(current / 2), packetSize);
+            }
+        } else {
+            shortTransfers = 0;
+        }
+    }
+
+    private void resize() {
+        shortTransfers = 0;
+        int maxPackets = MAX_SIZE / packetSize;
+        if (requestedSize != ADAPTIVE) {
+            maxSize = Math.min(roundUp(requestedSize), maxPackets * packetSize);
+            size = maxSize;
+            return;
+        }
+        maxSize = clamp(bytesIn(MAX_LATENCY), maxPackets);
+        size = Math.min(clamp(bytesIn(TARGET_LATENCY), maxPackets), maxSize);
+    }
+
+    /*
+     * Bytes received in ms milliseconds at the current baud rate, 10 bits per byte
+     */
+    private long bytesIn(int ms) {
+        return (long) baudRate * ms / 10000;
+    }
+
+    private int clamp(long bytes, int maxPackets) {
+        long packets = (bytes + packetSize - 1) / packetSize;
+        return (int) Math.max(1, Math.min(packets, maxPackets)) * packetSize;
+    }
+
+    private int roundUp(int bytes) {
+        return (bytes + packetSize - 1) / packetSize * packetSize;
+    }
+}
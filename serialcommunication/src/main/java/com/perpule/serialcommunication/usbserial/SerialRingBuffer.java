@@ -0,0 +1,264 @@
+package com.perpule.serialcommunication.usbserial;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free multi-producer/single-consumer byte ring used as the staging area of the
+ * asynchronous write path.
+ *
+ * Producers reserve a region by advancing {@code claimed} with a CAS, copy their bytes and then
+ * publish the region in claim order. The single consumer (the write thread) reads contiguous
+ * regions straight out of {@link #array()} and hands them to {@code bulkTransfer} without copying.
+ * Positions are absolute byte counts, the slot of a position is {@code position & mask}.
+ */
+class SerialRingBuffer {
+    private final byte[] buffer;
+    private final int capacity;
+    private final int mask;
+
+    private final AtomicLong claimed = new AtomicLong(); // Next position handed to a producer
+    private final AtomicLong published = new AtomicLong(); // Positions below this are readable
+    private final AtomicLong consumed = new AtomicLong(); // Positions below this are free again
+
+    private volatile Thread consumer;
+    private volatile boolean consumerParked;
+    private volatile Runnable dataListener; // Consumer without a thread of its own, see setDataListener()
+
+    // Producers blocked until there is room for their data
+    private final ConcurrentLinkedQueue<Thread> waitingProducers = new ConcurrentLinkedQueue<>();
+
+    SerialRingBuffer(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0)
+            throw new IllegalArgumentException("Ring capacity must be a power of two");
+        this.buffer = new byte[capacity];
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+    }
+
+    /*
+     * Producer side. Copies as many bytes of src as fit and returns that number
+     */
+    int put(byte[] src, int offset, int length) {
+        if (src == null || length <= 0)
+            return 0;
+
+        long start;
+        int n;
+        do {
+            start = claimed.get();
+            int free = capacity - (int) (start - consumed.get());
+            n = Math.min(length, free);
+            if (n <= 0)
+                return 0;
+        } while (!claimed.compareAndSet(start, start + n));
+
+        copyIn(src, offset, start, n);
+        publish(start, n);
+        return n;
+    }
+
+    /*
+     * Producer side. Copies all of src or nothing, returns false if it does not fit right now
+     */
+    boolean offer(byte[] src, int offset, int length) {
+        if (length <= 0)
+            return true;
+        long start = claim(length);
+        if (start < 0)
+            return false;
+
+        copyIn(src, offset, start, length);
+        publish(start, length);
+        return true;
+    }
+
+    /*
+     * Producer side. Gathers the remaining bytes of every buffer of srcs, length in total, into one region.
+     * All or nothing, the buffers are only read (and their positions moved to their limits) if they fit.
+     * Returns the position of the region, -1 if it does not fit right now
+     */
+    long offer(ByteBuffer[] srcs, int length) {
+        long start = claim(length);
+        if (start < 0 || length <= 0)
+            return start;
+
+        long position = start;
+        for (ByteBuffer src : srcs) {
+            int n = src.remaining();
+            copyIn(src, position);
+            position += n;
+        }
+        publish(start, length);
+        return start;
+    }
+
+    /*
+     * Reserves length bytes, returns the start of the region or -1 if they do not fit right now
+     */
+    private long claim(int length) {
+        if (length > capacity)
+            return -1;
+        long start;
+        do {
+            start = claimed.get();
+            int free = capacity - (int) (start - consumed.get());
+            if (free < length)
+                return -1;
+        } while (!claimed.compareAndSet(start, start + length));
+        return start;
+    }
+
+    int free() {
+        return capacity - (int) (claimed.get() - consumed.get());
+    }
+
+    /*
+     * Parks the calling producer until the consumer frees some space or the deadline
+     * (System.nanoTime() based) passes. Returns false once the deadline has passed
+     */
+    boolean awaitSpace(long deadline) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0)
+            return false;
+
+        Thread current = Thread.currentThread();
+        waitingProducers.add(current);
+        try {
+            LockSupport.parkNanos(this, Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(10)));
+        } finally {
+            waitingProducers.remove(current);
+        }
+        return !current.isInterrupted();
+    }
+
+    void wakeProducers() {
+        for (Thread producer : waitingProducers)
+            LockSupport.unpark(producer);
+    }
+
+    private void copyIn(byte[] src, int offset, long position, int length) {
+        int index = (int) (position & mask);
+        int first = Math.min(length, capacity - index);
+        System.arraycopy(src, offset, buffer, index, first);
+        if (first < length)
+            System.arraycopy(src, offset + first, buffer, 0, length - first);
+    }
+
+    private void copyIn(ByteBuffer src, long position) {
+        int length = src.remaining();
+        int index = (int) (position & mask);
+        int first = Math.min(length, capacity - index);
+        src.get(buffer, index, first);
+        if (first < length)
+            src.get(buffer, 0, length - first);
+    }
+
+    /*
+     * Regions become visible in claim order. A producer that finished copying before an earlier
+     * one waits for it, which only happens while both are inside put()
+     */
+    private void publish(long start, int length) {
+        while (published.get() != start)
+            Thread.yield();
+        published.set(start + length);
+
+        if (consumerParked)
+            LockSupport.unpark(consumer);
+        Runnable listener = dataListener;
+        if (listener != null)
+            listener.run();
+    }
+
+    int size() {
+        return (int) (published.get() - consumed.get());
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /*
+     * Consumer side. The consumer registers itself once before waiting on the ring
+     */
+    void setConsumer(Thread consumer) {
+        this.consumer = consumer;
+    }
+
+    /*
+     * Event driven consumers are called on the producer thread after each publish and wakeConsumer()
+     */
+    void setDataListener(Runnable listener) {
+        this.dataListener = listener;
+    }
+
+    /*
+     * Parks the consumer until there is data or it is unparked by someone else (stop requests).
+     * Returns the length of the contiguous readable region starting at readOffset(), may be 0
+     */
+    int awaitReadable() {
+        int length = readableLength();
+        if (length > 0)
+            return length;
+
+        consumerParked = true;
+        try {
+            // Re-check after announcing we park, a producer may have published in between
+            length = readableLength();
+            if (length == 0)
+                LockSupport.park(this);
+        } finally {
+            consumerParked = false;
+        }
+        return readableLength();
+    }
+
+    int readableLength() {
+        long tail = consumed.get();
+        int available = (int) (published.get() - tail);
+        if (available <= 0)
+            return 0;
+        int index = (int) (tail & mask);
+        return Math.min(available, capacity - index);
+    }
+
+    /*
+     * Absolute position of the first readable byte
+     */
+    long readPosition() {
+        return consumed.get();
+    }
+
+    int readOffset() {
+        return (int) (consumed.get() & mask);
+    }
+
+    byte[] array() {
+        return buffer;
+    }
+
+    void consume(int length) {
+        consumed.set(consumed.get() + length);
+        if (!waitingProducers.isEmpty())
+            wakeProducers();
+    }
+
+    /*
+     * Drops everything already published. Only meant to be called once the consumer is stopped
+     */
+    void reset() {
+        consumed.set(published.get());
+    }
+
+    void wakeConsumer() {
+        Thread thread = consumer;
+        if (thread != null)
+            LockSupport.unpark(thread);
+        Runnable listener = dataListener;
+        if (listener != null)
+            listener.run();
+    }
+}
@@ -0,0 +1,225 @@
+package com.perpule.serialcommunication.usbserial;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffered reads over the synchronous read path, for request/response code running on a thread of its own.
+ *
+ * Every read takes an absolute deadline, see {@link #deadlineAfter(int)}, which holds across all the transfers the read
+ * needs. Bytes received past what a read asked for stay buffered for the next one. FTDI status bytes are removed before
+ * the data is buffered. Nothing is allocated once the reader is created.
+ *
+ * The device must have been opened with {@link UsbSerialDevice#syncOpen()}. A reader is meant to be used by one thread.
+ */
+public class SerialSyncReader {
+    /** Deadline of reads that wait as long as needed */
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Finds the frames in the buffered bytes for {@link #readFrame(FrameDecoder, long)}.
+     */
+    public interface FrameDecoder<T> {
+        /**
+         * @return length of the frame starting at offset, 0 if more bytes are needed to tell, or minus the number of bytes
+         * to drop in front of the next frame
+         */
+        int frameLength(byte[] buffer, int offset, int length);
+
+        /**
+         * Builds the frame found by {@link #frameLength(byte[], int, int)}, the bytes are only valid during the call
+         */
+        T decode(byte[] buffer, int offset, int length);
+    }
+
+    /*
+     * One IN transfer of payload bytes into buffer, see UsbSerialDevice.syncReadTransfer()
+     */
+    interface Source {
+        int read(byte[] buffer, int timeout) throws IOException;
+    }
+
+    private final Source source;
+    private final byte[] buffer;
+    private final byte[] transfer;
+    private int head; // First buffered byte
+    private int tail; // End of the buffered bytes
+
+    public SerialSyncReader(UsbSerialDevice device) {
+        this(device, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize bytes kept between reads, the largest frame {@link #readFrame(FrameDecoder, long)} returns is one
+     *                   transfer smaller
+     */
+    public SerialSyncReader(final UsbSerialDevice device, int bufferSize) {
+        this(new Source() {
+            @Override
+            public int read(byte[] buffer, int timeout) throws IOException {
+                if (device.asyncMode)
+                    throw new IOException("Device is not open in synchronous mode");
+                return device.syncReadTransfer(buffer, timeout);
+            }
+        }, bufferSize, device.getReadBufferSize());
+    }
+
+    SerialSyncReader(Source source, int bufferSize, int transferSize) {
+        if (transferSize <= 0)
+            throw new IllegalArgumentException("Transfer size must be positive");
+        this.source = source;
+        this.transfer = new byte[transferSize];
+        this.buffer = new byte[Math.max(bufferSize, 2 * transferSize)];
+    }
+
+    /**
+     * @return absolute deadline timeout milliseconds from now, {@link #NO_DEADLINE} if timeout is 0
+     */
+    public static long deadlineAfter(int timeout) {
+        if (timeout < 0)
+            throw new IllegalArgumentException("Timeout must not be negative");
+        return timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : NO_DEADLINE;
+    }
+
+    /**
+     * Reads exactly length bytes.
+     *
+     * @throws InterruptedIOException if the deadline passes first, bytesTransferred tells how many bytes are in dst
+     */
+    public void readFully(byte[] dst, int offset, int length, long deadline) throws IOException {
+        if (offset < 0 || length < 0 || length > dst.length - offset)
+            throw new IndexOutOfBoundsException();
+        int read = 0;
+        while (true) {
+            int n = Math.min(length - read, tail - head);
+            System.arraycopy(buffer, head, dst, offset + read, n);
+            head += n;
+            read += n;
+            if (read == length)
+                return;
+            if (!fill(deadline))
+                throw timeout(read);
+        }
+    }
+
+    /**
+     * Reads up to and including the first delimiter, what follows it stays buffered.
+     *
+     * @return number of bytes written to dst, the delimiter included
+     * @throws InterruptedIOException if the deadline passes first, bytesTransferred tells how many bytes are in dst
+     * @throws IOException            if maxLength bytes came without a delimiter, they are in dst
+     */
+    public int readUntil(byte delimiter, byte[] dst, int offset, int maxLength, long deadline) throws IOException {
+        if (offset < 0 || maxLength < 0 || maxLength > dst.length - offset)
+            throw new IndexOutOfBoundsException();
+        int read = 0;
+        while (true) {
+            int n = Math.min(maxLength - read, tail - head);
+            int end = indexOf(delimiter, head, head + n);
+            if (end >= 0)
+                n = end + 1 - head;
+            System.arraycopy(buffer, head, dst, offset + read, n);
+            head += n;
+            read += n;
+            if (end >= 0)
+                return read;
+            if (read == maxLength)
+                throw new IOException("No delimiter in " + maxLength + " bytes");
+            if (!fill(deadline))
+                throw timeout(read);
+        }
+    }
+
+    /**
+     * Reads the next frame found by decoder, the bytes dropped by the decoder and the frame are removed from the buffer.
+     *
+     * @throws InterruptedIOException if the deadline passes first, the bytes received so far stay buffered
+     */
+    public <T> T readFrame(FrameDecoder<T> decoder, long deadline) throws IOException {
+        while (true) {
+            int count = tail - head;
+            if (count > 0) {
+                int length = decoder.frameLength(buffer, head, count);
+                if (length < 0) {
+                    head += Math.min(-length, count);
+                    continue;
+                }
+                if (length > buffer.length - transfer.length)
+                    throw new IOException("Frame of " + length + " bytes does not fit in the read buffer");
+                if (length > 0 && length <= count) {
+                    T frame = decoder.decode(buffer, head, length);
+                    head += length;
+                    return frame;
+                }
+            }
+            if (!fill(deadline))
+                throw timeout(0);
+        }
+    }
+
+    /**
+     * @return bytes buffered, read without waiting for a transfer
+     */
+    public int available() {
+        return tail - head;
+    }
+
+    /**
+     * Drops the buffered bytes, for example once a response has been given up on
+     */
+    public void clear() {
+        head = 0;
+        tail = 0;
+    }
+
+    /*
+     * Buffers the payload of the next transfer that has some. Returns false once the deadline has passed
+     */
+    private boolean fill(long deadline) throws IOException {
+        if (buffer.length - tail < transfer.length) {
+            System.arraycopy(buffer, head, buffer, 0, tail - head);
+            tail -= head;
+            head = 0;
+            if (buffer.length - tail < transfer.length)
+                throw new IOException("Read buffer full, no frame in " + tail + " bytes");
+        }
+
+        while (true) {
+            int timeout = 0;
+            if (deadline != NO_DEADLINE) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return false;
+                timeout = (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+            }
+
+            long start = System.nanoTime();
+            int n = source.read(transfer, timeout);
+            if (n > 0) {
+                System.arraycopy(transfer, 0, buffer, tail, n);
+                tail += n;
+                return true;
+            }
+            // A timed out transfer returns -1 as well, one returning long before its timeout failed
+            if (n < 0 && (timeout == 0 || System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(timeout) / 2))
+                throw new IOException("IN transfer failed");
+        }
+    }
+
+    private int indexOf(byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == value)
+                return i;
+        }
+        return -1;
+    }
+
+    private static InterruptedIOException timeout(int bytesTransferred) {
+        InterruptedIOException e = new InterruptedIOException("Read deadline passed");
+        e.bytesTransferred = bytesTransferred;
+        return e;
+    }
+}
@@ -0,0 +1,115 @@
+package com.perpule.serialcommunication.usbserial;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Base of the threads owned by a device.
+ *
+ * The lifecycle only moves forward: NEW, RUNNING, STOPPING, TERMINATED. {@link #startAndAwait()} returns once
+ * {@link #work()} is about to run, {@link #stopAndJoin(long)} asks the thread to stop, keeps waking it up through
+ * {@link #wakeUp()} and returns once it has exited or the timeout has passed.
+ */
+abstract class SerialThread extends Thread {
+    static final int STATE_NEW = 0;
+    static final int STATE_RUNNING = 1;
+    static final int STATE_STOPPING = 2;
+    static final int STATE_TERMINATED = 3;
+
+    // A blocked thread is woken up again at this interval while stopAndJoin() waits, covers wake ups lost in races
+    private static final long WAKE_UP_INTERVAL = 10;
+
+    private final AtomicInteger state = new AtomicInteger(STATE_NEW);
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    /*
+     * Body of the thread, must return soon after isRunning() turns false
+     */
+    abstract void work();
+
+    /*
+     * Unblocks whatever work() may be waiting on. Called from the stopping thread, possibly more than once
+     */
+    void wakeUp() {
+    }
+
+    @Override
+    public final void run() {
+        state.compareAndSet(STATE_NEW, STATE_RUNNING);
+        started.countDown();
+        try {
+            if (isRunning())
+                work();
+        } finally {
+            state.set(STATE_TERMINATED);
+        }
+    }
+
+    /*
+     * Starts the thread and waits until it is running, no busy waiting
+     */
+    void startAndAwait() {
+        start();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                started.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    boolean isRunning() {
+        return state.get() == STATE_RUNNING;
+    }
+
+    int getLifecycleState() {
+        return state.get();
+    }
+
+    /*
+     * Moves to STOPPING and wakes the thread up. Returns false if a stop was already requested
+     */
+    boolean requestStop() {
+        while (true) {
+            int current = state.get();
+            if (current >= STATE_STOPPING)
+                return false;
+            if (state.compareAndSet(current, STATE_STOPPING))
+                break;
+        }
+        wakeUp();
+        return true;
+    }
+
+    /*
+     * Stops the thread and waits up to timeout milliseconds for it to exit. Returns true once it has exited,
+     * false on timeout or when called from the thread itself (it exits as soon as the current callback returns)
+     */
+    boolean stopAndJoin(long timeout) {
+        requestStop();
+        if (Thread.currentThread() == this)
+            return false;
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (isAlive()) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0)
+                return false;
+            try {
+                join(Math.min(remaining, WAKE_UP_INTERVAL));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return !isAlive();
+            }
+            if (isAlive())
+                wakeUp();
+        }
+        return true;
+    }
+}
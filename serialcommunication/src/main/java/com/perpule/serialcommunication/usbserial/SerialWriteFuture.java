@@ -0,0 +1,178 @@
+package com.perpule.serialcommunication.usbserial;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completion of a write queued by {@link UsbSerialDevice#writeAsync(byte[], int)}.
+ *
+ * The write is done once its last byte has been accepted by the device, or as soon as a transfer carrying its bytes
+ * fails or its deadline passes. Bytes of a failed write that were not sent yet are dropped, {@link #getBytesWritten()}
+ * tells how many made it. {@link #get()} returns the number of bytes written or throws an {@link ExecutionException}
+ * wrapping the {@link IOException} of a failed write.
+ *
+ * Data queued in the write buffer can not be taken back, writes can not be cancelled.
+ */
+public final class SerialWriteFuture implements Future<Integer> {
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private final int length;
+    private final long deadline; // System.nanoTime() based, NO_DEADLINE if the transfers keep the default timeout
+
+    // Positions of the write in the write ring, set once when it is queued
+    long start;
+    long end;
+
+    private int written;
+    private boolean done;
+    private IOException error;
+    private UsbSerialInterface.UsbWriteCallback callback;
+    private boolean notified; // The completing thread has looked at the callback
+
+    SerialWriteFuture(int length, long deadline) {
+        this.length = length;
+        this.deadline = deadline;
+    }
+
+    static long deadline(int timeout) {
+        return timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : NO_DEADLINE;
+    }
+
+    /**
+     * Called once the write is done, on the thread completing it. Called right away if it is done already
+     */
+    public void setCallback(UsbSerialInterface.UsbWriteCallback callback) {
+        synchronized (this) {
+            this.callback = callback;
+            if (!notified)
+                return;
+        }
+        if (callback != null)
+            callback.onWriteCompleted(this);
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public synchronized int getBytesWritten() {
+        return written;
+    }
+
+    /**
+     * @return true once every byte has been accepted by the device
+     */
+    public synchronized boolean isSuccessful() {
+        return done && error == null;
+    }
+
+    /**
+     * @return why the write failed, null while it is pending or if it succeeded
+     */
+    public synchronized IOException getError() {
+        return error;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized Integer get() throws InterruptedException, ExecutionException {
+        while (!done)
+            wait();
+        return result();
+    }
+
+    @Override
+    public synchronized Integer get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long remaining = unit.toNanos(timeout);
+        long limit = System.nanoTime() + remaining;
+        while (!done) {
+            if (remaining <= 0)
+                throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            remaining = limit - System.nanoTime();
+        }
+        return result();
+    }
+
+    private Integer result() throws ExecutionException {
+        if (error != null)
+            throw new ExecutionException(error);
+        return written;
+    }
+
+    /*
+     * Timeout in ms for the next transfer of this write, defaultTimeout without a deadline. -1 if the write has failed
+     * or its deadline has passed, its remaining bytes are then dropped
+     */
+    synchronized int transferTimeout(int defaultTimeout) {
+        if (done)
+            return -1;
+        if (deadline == NO_DEADLINE)
+            return defaultTimeout;
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0)
+            return -1;
+        return (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+    }
+
+    boolean isExpired() {
+        return deadline != NO_DEADLINE && System.nanoTime() - deadline >= 0;
+    }
+
+    /*
+     * Counts sent bytes and completes the write once they are all sent. Returns true if this call completed it
+     */
+    synchronized boolean onSent(int sent) {
+        if (done)
+            return false;
+        written += sent;
+        if (written < length)
+            return false;
+        done = true;
+        notifyAll();
+        return true;
+    }
+
+    /*
+     * Returns true if this call completed the write
+     */
+    synchronized boolean fail(IOException error) {
+        if (done)
+            return false;
+        this.error = error;
+        done = true;
+        notifyAll();
+        return true;
+    }
+
+    /*
+     * Runs the callback of a write just completed, outside of any lock
+     */
+    void notifyCallback() {
+        UsbSerialInterface.UsbWriteCallback callback;
+        synchronized (this) {
+            notified = true;
+            callback = this.callback;
+        }
+        if (callback != null)
+            callback.onWriteCompleted(this);
+    }
+}
@@ -0,0 +1,219 @@
+package com.perpule.serialcommunication.usbserial;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Splits OUT data into bulk transfers of whole packets.
+ *
+ * Every transfer but the last of a write is a multiple of wMaxPacketSize, at most {@link #MAX_TRANSFER_SIZE} and no
+ * more than the line sends in {@link #TRANSFER_TIME} ms at the current baud rate. A transfer then ends well within its
+ * timeout even on a slow line, where the chip holds the bus with NAKs until its FIFO drains. A transfer returning less
+ * than it was given is resumed from the first byte not sent. A write ending on a packet boundary is followed by a zero
+ * length packet when the device needs a short packet to see the end of the data.
+ */
+final class SerialWriteScheduler {
+    static final int MAX_TRANSFER_SIZE = 16 * 1024;
+
+    private static final int TRANSFER_TIME = 1000;
+    private static final int DEFAULT_PACKET_SIZE = 64;
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /*
+     * Same contract as UsbDeviceConnection.bulkTransfer() on the OUT endpoint, returns the number of bytes sent or a
+     * negative value on failure. A timeout of 0 waits forever
+     */
+    interface Transport {
+        int bulkTransfer(byte[] data, int offset, int length, int timeout);
+    }
+
+    private volatile int packetSize = DEFAULT_PACKET_SIZE;
+    private int baudRate = SerialConfig.DEFAULT.getBaudRate();
+    private volatile int transferSize;
+    private volatile boolean zeroLengthPackets;
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong failedWrites = new AtomicLong();
+
+    private byte[] staging; // Transfers gathered from several buffers, guarded by this
+
+    SerialWriteScheduler() {
+        resize();
+    }
+
+    /*
+     * Called when the device is opened with the wMaxPacketSize of its OUT endpoint and the baud rate it is set up with
+     */
+    synchronized void reset(int packetSize, int baudRate) {
+        this.packetSize = packetSize > 0 ? packetSize : DEFAULT_PACKET_SIZE;
+        this.baudRate = baudRate;
+        resize();
+    }
+
+    synchronized void setBaudRate(int baudRate) {
+        if (baudRate <= 0 || baudRate == this.baudRate)
+            return;
+        this.baudRate = baudRate;
+        resize();
+    }
+
+    void setZeroLengthPackets(boolean zeroLengthPackets) {
+        this.zeroLengthPackets = zeroLengthPackets;
+    }
+
+    boolean isZeroLengthPackets() {
+        return zeroLengthPackets;
+    }
+
+    int getTransferSize() {
+        return transferSize;
+    }
+
+    long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    long getFailedWrites() {
+        return failedWrites.get();
+    }
+
+    /*
+     * Length of the next transfer of a write with length bytes left, for the reactor which queues its transfers as
+     * UsbRequests instead of going through write()
+     */
+    int nextChunk(int length) {
+        return Math.min(length, transferSize);
+    }
+
+    /*
+     * True when a write whose last transfer was length bytes must be followed by a zero length packet
+     */
+    boolean needsZeroLengthPacket(int length) {
+        return zeroLengthPackets && length > 0 && length % packetSize == 0;
+    }
+
+    /*
+     * Counts a transfer of length bytes the reactor queued, of which the device accepted sent
+     */
+    void onWritten(int length, int sent) {
+        bytesWritten.addAndGet(sent);
+        if (sent < length)
+            failedWrites.incrementAndGet();
+    }
+
+    /*
+     * Sends data[offset, offset + length) within timeout ms in total, 0 waits forever.
+     * Returns the number of bytes the device accepted, stops at the first failed transfer
+     */
+    int write(Transport transport, byte[] data, int offset, int length, int timeout) {
+        int sent = write(transport, data, offset, length, deadline(timeout), 0, true);
+        if (sent < length)
+            failedWrites.incrementAndGet();
+        return sent;
+    }
+
+    /*
+     * Sends data[offset, offset + length) with timeout ms for each transfer rather than for the whole write, 0 waits
+     * forever. Data of any length goes out at any baud rate as long as the device keeps accepting it
+     */
+    int writeStalling(Transport transport, byte[] data, int offset, int length, int timeout) {
+        int sent = write(transport, data, offset, length, NO_DEADLINE, timeout, true);
+        if (sent < length)
+            failedWrites.incrementAndGet();
+        return sent;
+    }
+
+    /*
+     * Sends the remaining bytes of srcs, length in total, within timeout ms as if they were one array. Each transfer is
+     * gathered into a staging array, the positions of the buffers are moved past the bytes the device accepted
+     */
+    synchronized int write(Transport transport, ByteBuffer[] srcs, int length, int timeout) {
+        long deadline = deadline(timeout);
+        int chunkSize = transferSize;
+        if (staging == null || staging.length < chunkSize)
+            staging = new byte[chunkSize];
+
+        int sent = 0;
+        int index = 0;
+        while (sent < length) {
+            // Each buffer is marked where the transfer starts reading it, in case not all of it is sent
+            int first = index;
+            int last = index;
+            int staged = 0;
+            while (staged < chunkSize && index < srcs.length) {
+                ByteBuffer src = srcs[index];
+                src.mark();
+                int n = Math.min(src.remaining(), chunkSize - staged);
+                src.get(staging, staged, n);
+                staged += n;
+                last = index;
+                if (!src.hasRemaining())
+                    index++;
+            }
+
+            int n = write(transport, staging, 0, staged, deadline, 0, sent + staged == length);
+            sent += n;
+            if (n < staged) {
+                for (int i = first; i <= last; i++) {
+                    srcs[i].reset();
+                    int accepted = Math.min(n, srcs[i].remaining());
+                    srcs[i].position(srcs[i].position() + accepted);
+                    n -= accepted;
+                }
+                failedWrites.incrementAndGet();
+                break;
+            }
+        }
+        return sent;
+    }
+
+    /*
+     * A transferTimeout above 0 bounds each transfer instead of the deadline. end is false while more data of the same
+     * write follows, the zero length packet only goes after the last part
+     */
+    private int write(Transport transport, byte[] data, int offset, int length, long deadline, int transferTimeout,
+                      boolean end) {
+        int sent = 0;
+        while (sent < length) {
+            int remaining = transferTimeout > 0 ? transferTimeout : remainingTime(deadline);
+            if (remaining < 0)
+                break;
+            int n = transport.bulkTransfer(data, offset + sent, nextChunk(length - sent), remaining);
+            if (n <= 0)
+                break;
+            sent += n;
+            bytesWritten.addAndGet(n);
+        }
+
+        if (end && sent == length && needsZeroLengthPacket(length)) {
+            int remaining = transferTimeout > 0 ? transferTimeout : remainingTime(deadline);
+            if (remaining >= 0)
+                transport.bulkTransfer(data, offset, 0, remaining);
+        }
+        return sent;
+    }
+
+    private static long deadline(int timeout) {
+        return timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : NO_DEADLINE;
+    }
+
+    /*
+     * Milliseconds left before deadline, at least 1 so a transfer is not turned into an endless one, or 0 when there
+     * is no deadline. -1 once the deadline has passed
+     */
+    private static int remainingTime(long deadline) {
+        if (deadline == NO_DEADLINE)
+            return 0;
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0)
+            return -1;
+        return (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+    }
+
+    private void resize() {
+        long bytes = (long) baudRate * TRANSFER_TIME / 10000; // 10 bits per byte
+        long packets = Math.max(1, Math.min(bytes / packetSize, MAX_TRANSFER_SIZE / packetSize));
+        transferSize = (int) packets * packetSize;
+    }
+}
@@ -0,0 +1,83 @@
+package com.perpule.serialcommunication.usbserial;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Follows the writes queued by writeAsync() through the write ring, by their positions in it.
+ *
+ * Writes are kept in ring order. The consumer cuts its transfers at their boundaries so every transfer carries bytes
+ * of at most one tracked write and uses that write's deadline, then reports how much of it the device accepted.
+ * Producers register a write while holding the tracker lock around its claim, so the consumer never sees its bytes
+ * before the write itself.
+ */
+final class SerialWriteTracker {
+    private final ArrayDeque<SerialWriteFuture> pending = new ArrayDeque<>();
+
+    /*
+     * Called with the lock held, right after the bytes of the write have been claimed at start
+     */
+    void add(SerialWriteFuture write, long start) {
+        write.start = start;
+        write.end = start + write.getLength();
+        pending.add(write);
+    }
+
+    /*
+     * Part of the length readable bytes at position that belongs to a single tracked write, or to none
+     */
+    synchronized int limit(long position, int length) {
+        SerialWriteFuture head = pending.peek();
+        if (head == null)
+            return length;
+        long boundary = position < head.start ? head.start : head.end;
+        return (int) Math.min(length, boundary - position);
+    }
+
+    /*
+     * Tracked write the byte at position belongs to, null if none
+     */
+    synchronized SerialWriteFuture at(long position) {
+        SerialWriteFuture head = pending.peek();
+        return head != null && head.start <= position && position < head.end ? head : null;
+    }
+
+    /*
+     * The device accepted sent of the length bytes of write starting at position, the rest is dropped. A short transfer
+     * fails the write right away, the bytes left of it are dropped as the consumer reaches them
+     */
+    void onSent(SerialWriteFuture write, long position, int length, int sent) {
+        boolean completed = write.onSent(sent);
+        if (sent < length) {
+            String reason = write.isExpired() ? "Write deadline passed, " : "Transfer failed, ";
+            completed = write.fail(new IOException(reason + write.getBytesWritten() + " of " + write.getLength()
+                    + " bytes written"));
+        }
+
+        synchronized (this) {
+            if (position + length >= write.end && pending.peek() == write) {
+                pending.poll();
+            }
+        }
+        if (completed)
+            write.notifyCallback();
+    }
+
+    /*
+     * Fails every pending write, their bytes have been dropped from the ring
+     */
+    void failAll(IOException error) {
+        List<SerialWriteFuture> failed = new ArrayList<>();
+        synchronized (this) {
+            for (SerialWriteFuture write : pending) {
+                if (write.fail(error))
+                    failed.add(write);
+            }
+            pending.clear();
+        }
+        for (SerialWriteFuture write : failed)
+            write.notifyCallback();
+    }
+}
@@ -13,7 +13,14 @@ import com.perpule.serialcommunication.deviceids.CP210xIds;
 import com.perpule.serialcommunication.deviceids.FTDISioIds;
 import com.perpule.serialcommunication.deviceids.PL2303Ids;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 public abstract class UsbSerialDevice implements UsbSerialInterface {
     private static final String CLASS_ID = UsbSerialDevice.class.getSimpleName();
@@ -24,18 +31,53 @@ public abstract class UsbSerialDevice implements UsbSerialInterface {
 
     static final int USB_TIMEOUT = 5000;
 
+    // Back-off of the WorkerThread while none of its IN requests could be queued, in ms
+    private static final long READ_RETRY_MIN_INTERVAL = 1;
+    private static final long READ_RETRY_MAX_INTERVAL = 100;
+
+    static final int DEFAULT_WRITE_DRAIN_TIMEOUT = 500;
+
+    // Synchronous IN transfers of the pre 4.3 read thread give up after this long so a stop request is noticed
+    static final int READ_POLL_TIMEOUT = 100;
+
+    static final int DEFAULT_READ_QUEUE_DEPTH = 1;
+    static final int MAX_READ_QUEUE_DEPTH = 16;
+
+    /** Read buffer size following the baud rate and the completions, see {@link #setReadBufferSize(int)} */
+    public static final int READ_BUFFER_SIZE_ADAPTIVE = SerialReadSizer.ADAPTIVE;
+    public static final int MAX_READ_BUFFER_SIZE = SerialReadSizer.MAX_SIZE;
+
     private SerialBuffer serialBuffer;
 
     private WorkerThread workerThread;
     private WriteThread writeThread;
     private ReadThread readThread;
+    private SerialReadDispatcher readDispatcher;
+
+    // Reactor mode, both channels are driven by the reactor shared by the devices of this connection
+    private boolean reactorMode;
+    private SerialReactor reactor;
+    private ReadChannel readChannel;
+    private WriteChannel writeChannel;
 
     // Endpoints for synchronous read and write operations
     private UsbEndpoint inEndpoint;
-    private UsbEndpoint outEndpoint;
 
     boolean asyncMode;
 
+    private int readQueueDepth = DEFAULT_READ_QUEUE_DEPTH;
+    private final SerialReadSizer readSizer = new SerialReadSizer();
+    final SerialWriteScheduler writeScheduler = new SerialWriteScheduler();
+    private final OutTransport syncTransport = new OutTransport();
+    private int writeDrainTimeout = DEFAULT_WRITE_DRAIN_TIMEOUT;
+
+    // Line errors reported by the chip drivers, edge detected and coalesced
+    final SerialLineErrors lineErrors = new SerialLineErrors();
+    private volatile UsbErrorEventCallback errorEventCallback;
+
+    private final Object configLock = new Object();
+    private SerialConfig currentConfig; // Last configuration applied, null while unknown
+
     // Get Android version if version < 4.3 It is not going to be asynchronous read operations
     static {
         mr1Version = android.os.Build.VERSION.SDK_INT > android.os.Build.VERSION_CODES.JELLY_BEAN_MR1;
@@ -46,6 +88,15 @@ public abstract class UsbSerialDevice implements UsbSerialInterface {
         this.connection = connection;
         this.asyncMode = true;
         serialBuffer = new SerialBuffer(mr1Version);
+        lineErrors.setListener(new SerialLineErrors.Listener() {
+            @Override
+            public void onLineError(int error, int count) {
+                onLineErrorEvent(error, count);
+                UsbErrorEventCallback callback = errorEventCallback;
+                if (callback != null)
+                    callback.onLineError(error, count);
+            }
+        });
     }
 
     public static UsbSerialDevice createUsbSerialDevice(UsbDevice device, UsbDeviceConnection connection) {
@@ -96,8 +147,100 @@ public abstract class UsbSerialDevice implements UsbSerialInterface {
 
     @Override
     public void write(byte[] buffer) {
-        if (asyncMode)
+        if (asyncMode) {
             serialBuffer.putWriteBuffer(buffer);
+            onWriteQueued();
+        }
+    }
+
+    /**
+     * Queues data for the write thread without ever dropping part of it.
+     *
+     * @param buffer         data to be written
+     * @param overflowPolicy one of {@link #WRITE_OVERFLOW_BLOCK}, {@link #WRITE_OVERFLOW_FAIL} or {@link #WRITE_OVERFLOW_GROW}
+     * @param timeout        maximum time in milliseconds {@link #WRITE_OVERFLOW_BLOCK} waits for room, 0 waits forever
+     * @return number of bytes queued, 0 if the data was refused or the timeout expired, -1 if the device is not in asynchronous mode
+     */
+    @Override
+    public int write(byte[] buffer, int overflowPolicy, int timeout) {
+        if (!asyncMode)
+            return -1;
+        int queued = serialBuffer.putWriteBuffer(buffer, overflowPolicy, timeout);
+        onWriteQueued();
+        return queued;
+    }
+
+    /**
+     * Queues the remaining bytes of every buffer, in order and with no other write in between, or nothing if they do not
+     * all fit. A frame built as header, payload and checksum buffers needs no concatenation.
+     *
+     * @return number of bytes queued, 0 if they did not fit, -1 if the device is not in asynchronous mode
+     */
+    @Override
+    public int write(ByteBuffer... buffers) {
+        return write(buffers, WRITE_OVERFLOW_FAIL, 0);
+    }
+
+    /**
+     * Same as {@link #write(byte[], int, int)} for the remaining bytes of several buffers. Their positions are moved past
+     * the bytes queued. Data larger than the write buffer is not kept together with {@link #WRITE_OVERFLOW_BLOCK}
+     */
+    @Override
+    public int write(ByteBuffer[] buffers, int overflowPolicy, int timeout) {
+        if (!asyncMode)
+            return -1;
+        if (buffers == null)
+            return 0;
+        int queued = serialBuffer.putWriteBuffer(buffers, overflowPolicy, timeout);
+        onWriteQueued();
+        return queued;
+    }
+
+    /**
+     * Queues data like {@link #write(byte[], int, int)} with {@link #WRITE_OVERFLOW_BLOCK} and tells when it has been sent.
+     *
+     * @param buffer  data to be written, at most the size of the write buffer
+     * @param timeout deadline in milliseconds from now to queue and send all of the data, replacing the timeout of each
+     *                transfer. 0 waits for room as long as needed and sends with the default transfer timeout
+     * @return handle completed with the number of bytes sent, or failed once a transfer fails or the deadline passes
+     */
+    @Override
+    public SerialWriteFuture writeAsync(byte[] buffer, int timeout) {
+        return writeAsync(new ByteBuffer[]{ByteBuffer.wrap(buffer != null ? buffer : new byte[0])}, timeout);
+    }
+
+    /**
+     * Gather variant of {@link #writeAsync(byte[], int)}, the positions of the buffers are moved past the bytes queued
+     */
+    @Override
+    public SerialWriteFuture writeAsync(ByteBuffer[] buffers, int timeout) {
+        if (timeout < 0)
+            throw new IllegalArgumentException("Timeout must not be negative");
+        if (buffers == null)
+            buffers = new ByteBuffer[0];
+        if (!asyncMode) {
+            SerialWriteFuture write = new SerialWriteFuture(SerialBuffer.remaining(buffers), SerialWriteFuture.NO_DEADLINE);
+            write.fail(new IOException("Device is not open in asynchronous mode"));
+            write.notifyCallback();
+            return write;
+        }
+        SerialWriteFuture write = serialBuffer.putWriteAsync(buffers, SerialWriteFuture.deadline(timeout));
+        onWriteQueued();
+        return write;
+    }
+
+    /*
+     * Called on the writing thread after data has been queued
+     */
+    void onWriteQueued() {
+    }
+
+    /**
+     * @return bytes accepted by {@link #write(byte[])} and not handed to the USB stack yet
+     */
+    @Override
+    public int getQueuedBytes() {
+        return serialBuffer.getQueuedBytes();
     }
 
     /**
@@ -124,19 +267,232 @@ public abstract class UsbSerialDevice implements UsbSerialInterface {
         return -1;
     }
 
+    /**
+     * <p>
+     * Use this setter <strong>before</strong> calling {@link #open()} to keep more than one IN request queued.
+     * </p>
+     *
+     * <p>
+     * With a single request the endpoint has nothing outstanding while a completion is processed, at high baud rates the
+     * device FIFO may overrun in that window. Completions are always delivered in the order they were queued.
+     * </p>
+     *
+     * @param depth number of IN requests kept in flight, between 1 and {@link #MAX_READ_QUEUE_DEPTH}
+     */
+    public void setReadQueueDepth(int depth) {
+        if (depth < 1 || depth > MAX_READ_QUEUE_DEPTH)
+            throw new IllegalArgumentException("Read queue depth must be between 1 and " + MAX_READ_QUEUE_DEPTH);
+        this.readQueueDepth = depth;
+    }
+
+    public int getReadQueueDepth() {
+        return readQueueDepth;
+    }
+
+    /**
+     * <p>
+     * Use this setter <strong>before</strong> calling {@link #open()} to change the number of bytes requested by each IN transfer,
+     * {@link SerialBuffer#DEFAULT_READ_BUFFER_SIZE} by default.
+     * </p>
+     *
+     * <p>
+     * A transfer completes when it is full or the device sends a short packet. Small transfers suit slow lines and short frames,
+     * large ones cut the number of completions at megabaud rates. {@link #READ_BUFFER_SIZE_ADAPTIVE} starts from about 10 ms
+     * of data at the current baud rate and grows or shrinks with the length of the completions, within one packet and
+     * 100 ms of data.
+     * </p>
+     *
+     * @param size bytes per IN transfer, rounded up to whole packets of the IN endpoint and at most {@link #MAX_READ_BUFFER_SIZE},
+     *             or {@link #READ_BUFFER_SIZE_ADAPTIVE}
+     */
+    public void setReadBufferSize(int size) {
+        readSizer.setRequestedSize(size);
+        serialBuffer.setReadChunkSize(readSizer.getMaxSize());
+    }
+
+    /**
+     * @return bytes requested by the IN transfers queued now, changes with the line in adaptive mode
+     */
+    public int getReadBufferSize() {
+        return readSizer.getSize();
+    }
+
+    public boolean isReadBufferAdaptive() {
+        return readSizer.isAdaptive();
+    }
+
+    /**
+     * Some devices, mostly CDC ones, only pass data on once a transfer ends with a short packet. With this set, writes whose
+     * length is a multiple of the OUT packet size are followed by a zero length packet. Set by default for CDC devices
+     */
+    public void setZeroLengthPackets(boolean zeroLengthPackets) {
+        writeScheduler.setZeroLengthPackets(zeroLengthPackets);
+    }
+
+    public boolean isZeroLengthPackets() {
+        return writeScheduler.isZeroLengthPackets();
+    }
+
+    /**
+     * @return bytes accepted by the device since it was created, by both asynchronous and synchronous writes
+     */
+    public long getBytesWritten() {
+        return writeScheduler.getBytesWritten();
+    }
+
+    /**
+     * @return writes that failed or timed out before all of their data was sent. Asynchronous writes drop what was not sent,
+     * {@link #syncWrite(byte[], int)} returns the number of bytes sent
+     */
+    public long getFailedWrites() {
+        return writeScheduler.getFailedWrites();
+    }
+
+    /**
+     * <p>
+     * Use this setter <strong>before</strong> calling {@link #open()} to run the device without threads of its own.
+     * </p>
+     *
+     * <p>
+     * IN and OUT transfers are queued as {@link UsbRequest}s and completed by a single reactor thread per {@link UsbDeviceConnection},
+     * shared by every device opened in reactor mode on that connection. Writes are submitted by the writing thread as soon as
+     * the previous OUT request completes. Has no effect on android < 4.3, where reads are synchronous.
+     * </p>
+     */
+    public void setReactorMode(boolean reactorMode) {
+        this.reactorMode = reactorMode;
+    }
+
+    public boolean isReactorMode() {
+        return reactorMode;
+    }
+
+    /**
+     * @param timeout maximum time in milliseconds {@link #close()} keeps sending data already queued by {@link #write(byte[])},
+     *                0 drops it right away
+     */
+    public void setWriteDrainTimeout(int timeout) {
+        if (timeout < 0)
+            throw new IllegalArgumentException("Drain timeout must not be negative");
+        this.writeDrainTimeout = timeout;
+    }
+
+    public int getWriteDrainTimeout() {
+        return writeDrainTimeout;
+    }
+
+    /**
+     * <p>
+     * Use this setter <strong>before</strong> calling any read method to run the read callback away from the USB thread.
+     * </p>
+     *
+     * <p>
+     * Completions are copied into pooled chunks and handed over through a bounded queue, the next IN request is queued
+     * without waiting for the callback. Callbacks are still delivered one at a time and in order.
+     * </p>
+     *
+     * @param capacity       completions the queue holds before the overflow policy applies
+     * @param overflowPolicy one of {@link SerialReadDispatcher#OVERFLOW_DROP_NEWEST}, {@link SerialReadDispatcher#OVERFLOW_DROP_OLDEST}
+     *                       or {@link SerialReadDispatcher#OVERFLOW_BLOCK}
+     * @param executor       runs the callbacks, null to use a dedicated thread
+     */
+    public void setReadDispatch(int capacity, int overflowPolicy, Executor executor) {
+        if (readDispatcher != null)
+            readDispatcher.stop();
+        readDispatcher = new SerialReadDispatcher(serialBuffer.getReadPool(), capacity, overflowPolicy, executor);
+    }
+
+    /**
+     * @return dispatch stage set by {@link #setReadDispatch(int, int, Executor)}, exposes queue depth and drop counts. Null if callbacks
+     * run on the USB thread
+     */
+    public SerialReadDispatcher getReadDispatcher() {
+        return readDispatcher;
+    }
+
+    /**
+     * Line errors are reported once when they start, a condition that stays set is one occurrence. Events of each type are
+     * coalesced to one per {@link #setErrorEventInterval(int)}, carrying the occurrences since the previous event. The parity,
+     * framing, overrun and break callbacks are rate limited the same way.
+     */
+    public void getErrorEvents(UsbErrorEventCallback errorEventCallback) {
+        this.errorEventCallback = errorEventCallback;
+        onErrorCallbacksChanged();
+    }
+
+    /**
+     * @param interval minimum time in milliseconds between two events of the same error type, 0 reports every occurrence
+     */
+    public void setErrorEventInterval(int interval) {
+        lineErrors.setEventInterval(interval);
+    }
+
+    /**
+     * @return cumulative parity, framing, overrun and break counts of this device. Errors are only seen while a callback
+     * listens for them
+     */
+    public SerialLineErrors getLineErrorCounters() {
+        return lineErrors;
+    }
+
+    boolean hasErrorEventCallback() {
+        return errorEventCallback != null;
+    }
+
+    /*
+     * Fires the per-type error callbacks of the chip driver, called on the thread reporting the errors
+     */
+    void onLineErrorEvent(int error, int count) {
+    }
+
+    /*
+     * Called when an error callback is set, drivers that poll for errors start or stop polling
+     */
+    void onErrorCallbacksChanged() {
+    }
+
     @Override
     public int read(UsbReadCallback mCallback) {
+        return readBuffers(mCallback != null ? new ReadCallbackAdapter(mCallback) : null);
+    }
+
+    @Override
+    public int readChunks(UsbReadChunkCallback mCallback) {
+        if (mCallback != null && readDispatcher != null && asyncMode) {
+            // Chunks made by the dispatcher go to the callback as they are
+            readDispatcher.start(mCallback);
+            return startRead(readDispatcher);
+        }
+        return startRead(mCallback != null ? new ReadChunkAdapter(serialBuffer.getReadPool(), mCallback) : null);
+    }
+
+    /**
+     * @return pool backing {@link #readChunks(UsbReadChunkCallback)}, exposes hit, miss and outstanding chunk counts
+     */
+    public SerialBufferPool getReadBufferPool() {
+        return serialBuffer.getReadPool();
+    }
+
+    @Override
+    public int readBuffers(UsbReadBufferCallback mCallback) {
+        if (mCallback != null && readDispatcher != null && asyncMode) {
+            readDispatcher.start(new ChunkBufferAdapter(mCallback));
+            return startRead(readDispatcher);
+        }
+        return startRead(mCallback);
+    }
+
+    private int startRead(UsbReadBufferCallback mCallback) {
         if (!asyncMode)
             return -1;
 
         if (mr1Version) {
-            if (workerThread != null) {
-                workerThread.setCallback(mCallback);
-                workerThread.getUsbRequest().queue(serialBuffer.getReadBuffer(), SerialBuffer.DEFAULT_READ_BUFFER_SIZE);
+            if (readChannel != null) {
+                readChannel.setCallback(mCallback);
+                readChannel.queueRequests();
             }
-        } else {
+        } else if (readThread != null) {
             readThread.setCallback(mCallback);
-            readThread.start();
         }
         return 0;
     }
@@ -158,12 +514,40 @@ public abstract class UsbSerialDevice implements UsbSerialInterface {
             if (buffer == null)
                 return 0;
 
-            return connection.bulkTransfer(outEndpoint, buffer, buffer.length, timeout);
+            int sent = writeScheduler.write(syncTransport, buffer, 0, buffer.length, timeout);
+            return sent > 0 || buffer.length == 0 ? sent : -1;
         } else {
             return -1;
         }
     }
 
+    /**
+     * Sends the remaining bytes of every buffer as one write. A single heap buffer is sent from its array, several
+     * buffers are gathered one transfer at a time. Their positions are moved past the bytes sent.
+     *
+     * @return number of bytes sent, -1 if nothing could be sent or the device is in asynchronous mode
+     */
+    @Override
+    public int syncWrite(ByteBuffer[] buffers, int timeout) {
+        if (asyncMode)
+            return -1;
+        if (buffers == null)
+            return 0;
+        int length = SerialBuffer.remaining(buffers);
+        if (length == 0)
+            return 0;
+
+        int sent;
+        if (buffers.length == 1 && buffers[0].hasArray()) {
+            ByteBuffer buffer = buffers[0];
+            sent = writeScheduler.write(syncTransport, buffer.array(), buffer.arrayOffset() + buffer.position(), length, timeout);
+            buffer.position(buffer.position() + sent);
+        } else {
+            sent = writeScheduler.write(syncTransport, buffers, length, timeout);
+        }
+        return sent > 0 ? sent : -1;
+    }
+
     @Override
     public int syncRead(byte[] buffer, int timeout) {
         if (asyncMode) {
@@ -176,6 +560,14 @@ public abstract class UsbSerialDevice implements UsbSerialInterface {
         return connection.bulkTransfer(inEndpoint, buffer, buffer.length, timeout);
     }
 
+    /*
+     * One IN transfer of up to buffer.length bytes for SerialSyncReader. Returns the number of payload bytes left at the
+     * start of buffer, 0 if the transfer only carried chip status, negative on timeout or failure
+     */
+    int syncReadTransfer(byte[] buffer, int timeout) {
+        return connection.bulkTransfer(inEndpoint, buffer, buffer.length, timeout);
+    }
+
     // Serial port configuration
     @Override
     public abstract void setBaudRate(int baudRate);
@@ -192,6 +584,67 @@ public abstract class UsbSerialDevice implements UsbSerialInterface {
     @Override
     public abstract void setFlowControl(int flowControl);
 
+    /**
+     * Sends only what differs from the configuration applied last. Calling one of the individual setters, opening or closing
+     * the device forgets that configuration, the next call sends every value again.
+     */
+    @Override
+    public void configure(SerialConfig config) {
+        if (config == null)
+            throw new IllegalArgumentException("Config must not be null");
+        synchronized (configLock) {
+            if (config.equals(currentConfig))
+                return;
+            currentConfig = applyConfig(currentConfig, config) ? config : null;
+        }
+        onBaudRateChanged(config.getBaudRate());
+    }
+
+    /**
+     * @return configuration applied by the last {@link #configure(SerialConfig)}, null if it is unknown
+     */
+    public SerialConfig getConfig() {
+        synchronized (configLock) {
+            return currentConfig;
+        }
+    }
+
+    /*
+     * Sends the values of config that differ from current, which is null when the device state is unknown. Returns false
+     * if a transfer failed. Drivers override it to pack the changed values into as few transfers as the chip allows
+     */
+    boolean applyConfig(SerialConfig current, SerialConfig config) {
+        if (current == null || current.getBaudRate() != config.getBaudRate())
+            setBaudRate(config.getBaudRate());
+        if (current == null || current.getDataBits() != config.getDataBits())
+            setDataBits(config.getDataBits());
+        if (current == null || current.getStopBits() != config.getStopBits())
+            setStopBits(config.getStopBits());
+        if (current == null || current.getParity() != config.getParity())
+            setParity(config.getParity());
+        if (current == null || current.getFlowControl() != config.getFlowControl())
+            setFlowControl(config.getFlowControl());
+        return true;
+    }
+
+    /*
+     * Called by the setters and whenever the device is reset, the cached configuration no longer matches the device
+     */
+    void invalidateConfig() {
+        synchronized (configLock) {
+            currentConfig = null;
+        }
+    }
+
+    /*
+     * Called by the baud rate setters, the adaptive read buffer size and the OUT transfer size follow the baud rate
+     */
+    void onBaudRateChanged(int baudRate) {
+        readSizer.setBaudRate(baudRate);
+        serialBuffer.setReadChunkSize(readSizer.getMaxSize());
+        writeScheduler.setBaudRate(baudRate);
+    }
+
     //Debug options
     public void debug(boolean value) {
         if (serialBuffer != null)
@@ -214,139 +667,637 @@ public abstract class UsbSerialDevice implements UsbSerialInterface {
 
 
     /*
-     * WorkerThread waits for request notifications from IN endpoint
+     * IN side of the asynchronous read path. Each in-flight request owns a read buffer (its slot), they are delivered
+     * and queued again round robin. Completions come from the WorkerThread or, in reactor mode, from the reactor of
+     * the connection. Closing cancels the queued requests, they are closed once all of them have been returned
      */
-    protected class WorkerThread extends Thread {
-        private UsbSerialDevice usbSerialDevice;
+    class ReadChannel implements SerialReactor.Completion {
+        private final SerialReactor reactor; // Null when a WorkerThread drives the channel
 
-        private UsbReadCallback callback;
+        private volatile UsbReadBufferCallback callback;
         private UsbRequest requestIN;
-        private AtomicBoolean working;
-
-        WorkerThread(UsbSerialDevice usbSerialDevice) {
-            this.usbSerialDevice = usbSerialDevice;
-            working = new AtomicBoolean(true);
+        private volatile UsbRequest[] requests;
+        private ByteBuffer[] views; // Read-only views of the slot buffers handed to the callback
+        private boolean[] completed;
+        private AtomicIntegerArray unqueued; // 1 for slots whose last queue() failed, they are retried when reached
+        private int nextSlot; // Slot whose completion must be delivered next
+        private final AtomicInteger inFlight = new AtomicInteger(); // Requests queued and not returned yet
+        private volatile boolean closing;
+        private final AtomicBoolean queued = new AtomicBoolean();
+        private final CountDownLatch queuedLatch = new CountDownLatch(1);
+
+        ReadChannel(SerialReactor reactor) {
+            this.reactor = reactor;
         }
 
         @Override
-        public void run() {
-            while (working.get()) {
-                UsbRequest request = connection.requestWait();
-                if (request != null && request.getEndpoint().getType() == UsbConstants.USB_ENDPOINT_XFER_BULK && request.getEndpoint().getDirection
-                        () == UsbConstants.USB_DIR_IN) {
-                    byte[] data = serialBuffer.getDataReceived();
+        public void onRequestCompleted(UsbRequest request) {
+            UsbRequest[] slots = requests;
+            int slot = 0;
+            while (slot < slots.length && slots[slot] != request)
+                slot++;
+            if (slot == slots.length)
+                return;
+
+            completed[slot] = true;
+            if (closing) {
+                if (inFlight.decrementAndGet() == 0) {
+                    synchronized (this) {
+                        notifyAll();
+                    }
+                }
+                return;
+            }
+            inFlight.decrementAndGet();
+
+            // Requests may complete out of order, hold them until the earlier ones are delivered. A slot that could
+            // not be queued has nothing to deliver, it is skipped and queued again. One lap at most
+            for (int i = 0; i < slots.length; i++) {
+                int next = nextSlot;
+                if (completed[next]) {
+                    completed[next] = false;
+                    onSlotCompleted(next);
+                } else if (unqueued.get(next) == 0) {
+                    break; // Still in flight
+                }
+                if (!closing)
+                    queue(next);
+                nextSlot = (next + 1) % slots.length;
+            }
+        }
 
-                    // FTDI devices reserves two first bytes of an IN endpoint with info about
-                    // modem and Line.
-                    if (isFTDIDevice()) {
-                        ((FTDISerialDevice) usbSerialDevice).ftdiUtilities.checkModemStatus(data); //Check the Modem status
-                        serialBuffer.clearReadBuffer();
+        private void onSlotCompleted(int slot) {
+            ByteBuffer buffer = serialBuffer.getReadBuffer(slot);
+            int length = buffer.position();
+            readSizer.onCompleted(length);
+
+            // FTDI devices reserves two first bytes of an IN endpoint with info about
+            // modem and Line.
+            if (isFTDIDevice()) {
+                // Modem and line status of every packet are checked while stripping
+                length = ((FTDISerialDevice) UsbSerialDevice.this).ftdiUtilities.adaptBuffer(buffer, length);
+            }
+
+            // Execute the callback over the received bytes, then clear the buffer
+            if (length > 0)
+                onReceivedData(views[slot], length);
+            serialBuffer.clearReadBuffer(slot);
+        }
+
+        private void queue(int slot) {
+            int size = readSizer.getSize();
+            ByteBuffer buffer = serialBuffer.getReadBuffer(slot);
+            if (buffer.capacity() < size) {
+                // The adaptive size outgrew the buffer, the slot is not queued so it can be replaced
+                buffer = serialBuffer.growReadBuffer(slot, size);
+                views[slot] = buffer.asReadOnlyBuffer();
+            }
+            // Counted first, the request may complete on the reactor thread before queue() returns
+            inFlight.incrementAndGet();
+            if (requests[slot].queue(buffer, size)) {
+                unqueued.set(slot, 0);
+                if (reactor != null)
+                    reactor.onQueued();
+            } else {
+                inFlight.decrementAndGet();
+                unqueued.set(slot, 1);
+            }
+        }
+
+        void setCallback(UsbReadBufferCallback callback) {
+            this.callback = callback;
+        }
+
+        /*
+         * The given request is used for the first slot, the rest of the queue depth is created on the same endpoint
+         */
+        void setUsbRequest(UsbRequest request) {
+            this.requestIN = request;
+
+            int depth = readQueueDepth;
+            serialBuffer.allocateReadBuffers(depth, readSizer.getSize());
+            UsbRequest[] slots = new UsbRequest[depth];
+            slots[0] = request;
+            for (int i = 1; i < depth; i++) {
+                slots[i] = new UsbRequest();
+                slots[i].initialize(connection, request.getEndpoint());
+            }
+            for (int i = 0; i < depth; i++)
+                slots[i].setClientData(this);
+
+            views = new ByteBuffer[depth];
+            for (int i = 0; i < depth; i++)
+                views[i] = serialBuffer.getReadBuffer(i).asReadOnlyBuffer();
+
+            completed = new boolean[depth];
+            unqueued = new AtomicIntegerArray(depth);
+            nextSlot = 0;
+            requests = slots; // Published last, completions are only looked at once requests is set
+        }
+
+        UsbRequest getUsbRequest() {
+            return requestIN;
+        }
+
+        /*
+         * Queues every slot the first time a callback is set, later calls only swap the callback
+         */
+        void queueRequests() {
+            if (requests == null || !queued.compareAndSet(false, true))
+                return;
+            for (int i = 0; i < requests.length; i++)
+                queue(i);
+            queuedLatch.countDown();
+        }
 
-                        if (data.length > 2) {
-                            data = ((FTDISerialDevice) usbSerialDevice).ftdiUtilities.adaptArray(data);
-                            onReceivedData(data);
+        /*
+         * requestWait() would block for good while nothing is queued, returns false if interrupted first
+         */
+        boolean awaitQueued() {
+            try {
+                queuedLatch.await();
+                return true;
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+
+        boolean isIdle() {
+            return inFlight.get() == 0;
+        }
+
+        /*
+         * Queues again, in delivery order, the slots whose queue() failed. Returns false if none of them could be queued
+         */
+        boolean requeueFailed() {
+            UsbRequest[] slots = requests;
+            boolean requeued = false;
+            for (int i = 0; i < slots.length && !closing; i++) {
+                int slot = (nextSlot + i) % slots.length;
+                if (unqueued.get(slot) == 1) {
+                    queue(slot);
+                    requeued |= unqueued.get(slot) == 0;
+                }
+            }
+            return requeued;
+        }
+
+        /*
+         * Stops queuing requests and cancels the ones in flight, may be called more than once
+         */
+        void cancel() {
+            closing = true;
+            UsbRequest[] slots = requests;
+            if (slots != null && !isIdle()) {
+                for (UsbRequest request : slots)
+                    request.cancel();
+            }
+        }
+
+        /*
+         * Reactor mode close, returns once every request has been returned and closed or the timeout has passed
+         */
+        boolean close(long timeout) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            synchronized (this) {
+                while (!isIdle()) {
+                    cancel();
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0)
+                        return false; // Requests still owned by the kernel are leaked rather than freed
+                    try {
+                        wait(Math.min(remaining, 10));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+            }
+            closing = true;
+            release();
+            return true;
+        }
+
+        void release() {
+            UsbRequest[] slots = requests;
+            if (slots == null)
+                return;
+            for (UsbRequest request : slots)
+                request.close();
+        }
+
+        private void onReceivedData(ByteBuffer view, int length) {
+            UsbReadBufferCallback callback = this.callback;
+            if (callback != null) {
+                view.limit(length).position(0);
+                callback.onReceivedData(view);
+            }
+        }
+    }
+
+    /*
+     * WorkerThread waits for request notifications from IN endpoint and feeds them to its read channel.
+     * Stopping cancels the queued requests, the thread reaps all of them before closing them and exiting
+     */
+    protected class WorkerThread extends SerialThread {
+        private final ReadChannel channel = new ReadChannel(null);
+
+        @Override
+        void work() {
+            if (channel.awaitQueued()) {
+                long retryInterval = READ_RETRY_MIN_INTERVAL;
+                while (isRunning() || !channel.isIdle()) {
+                    if (channel.isIdle()) {
+                        // Every queue() failed, requestWait() would block for good. Retried with back-off instead,
+                        // stopping interrupts the sleep
+                        if (channel.requeueFailed()) {
+                            retryInterval = READ_RETRY_MIN_INTERVAL;
+                            continue;
                         }
-                    } else {
-                        // Clear buffer, execute the callback
-                        serialBuffer.clearReadBuffer();
-                        onReceivedData(data);
+                        try {
+                            Thread.sleep(retryInterval);
+                        } catch (InterruptedException e) {
+                            // stop requested, checked by the loop
+                        }
+                        retryInterval = Math.min(retryInterval * 2, READ_RETRY_MAX_INTERVAL);
+                        continue;
+                    }
+                    UsbRequest request = connection.requestWait();
+                    if (request == null) {
+                        if (!isRunning())
+                            break;
+                        continue;
                     }
-                    // Queue a new request
-                    requestIN.queue(serialBuffer.getReadBuffer(), SerialBuffer.DEFAULT_READ_BUFFER_SIZE);
+                    if (request.getClientData() == channel)
+                        channel.onRequestCompleted(request);
                 }
             }
+            channel.release();
         }
 
-        public void setCallback(UsbReadCallback callback) {
-            this.callback = callback;
+        ReadChannel getChannel() {
+            return channel;
+        }
+
+        public void setCallback(UsbReadBufferCallback callback) {
+            channel.setCallback(callback);
         }
 
         public void setUsbRequest(UsbRequest request) {
-            this.requestIN = request;
+            channel.setUsbRequest(request);
         }
 
         public UsbRequest getUsbRequest() {
-            return requestIN;
+            return channel.getUsbRequest();
         }
 
-        private void onReceivedData(byte[] data) {
-            if (callback != null)
-                callback.onReceivedData(data);
+        @Override
+        void wakeUp() {
+            interrupt(); // Leaves the wait for the first read
+            channel.cancel();
         }
 
         public void stopWorkingThread() {
-            working.set(false);
+            requestStop();
+        }
+    }
+
+    /*
+     * OUT side in reactor mode. Whoever publishes data to the write ring copies the next piece into the buffer of the
+     * single OUT request and queues it, the reactor queues the following piece when it completes. Nobody waits on
+     * the ring, so no thread is needed.
+     * UsbRequest.queue() sends its buffer from index 0 on android < 8, so the ring region can not be queued in place.
+     * The request buffer is direct and allocated once, heap buffers are copied again by the framework on every queue
+     */
+    class WriteChannel implements SerialReactor.Completion, Runnable {
+        private final SerialReactor reactor;
+        private final UsbRequest request;
+        private final ByteBuffer buffer;
+        private final AtomicBoolean busy = new AtomicBoolean(); // The OUT request is queued or being filled
+        private int segmentOffset; // Part of the first WRITE_OVERFLOW_GROW segment already sent, guarded by busy
+        private int queuedLength; // Guarded by busy
+        private long queuedPosition; // Ring position of the data queued, guarded by busy
+        private SerialWriteFuture queuedWrite; // Tracked write the data queued belongs to, guarded by busy
+        private boolean queuedSegment; // The data queued comes from the first WRITE_OVERFLOW_GROW segment
+        private boolean queuedEnd; // The data queued is the last transfer of a write
+        private boolean zeroLengthPacket; // Goes out before any other data, guarded by busy
+        private volatile boolean expired; // The request in flight was cancelled by deadlineTask
+        private volatile boolean closing;
+
+        // requestWait() has no timeout, the poll scheduler cancels a request that outlives the deadline of its transfer
+        private final SerialPollScheduler.PollTask deadlineTask = new SerialPollScheduler.PollTask(USB_TIMEOUT, USB_TIMEOUT) {
+            @Override
+            boolean poll() {
+                // A request completing at the same time is counted as not sent
+                expired = true;
+                request.cancel();
+                return false;
+            }
+        };
+
+        WriteChannel(SerialReactor reactor, UsbEndpoint outEndpoint) {
+            this.reactor = reactor;
+            this.request = new UsbRequest();
+            this.request.initialize(connection, outEndpoint);
+            this.request.setClientData(this);
+            this.buffer = ByteBuffer.allocateDirect(SerialWriteScheduler.MAX_TRANSFER_SIZE);
+            serialBuffer.getWriteBuffer().setDataListener(this);
+        }
+
+        @Override
+        public void run() {
+            kick();
+        }
+
+        private void kick() {
+            while (!closing && busy.compareAndSet(false, true)) {
+                if (queueNext())
+                    return;
+                busy.set(false);
+                // Data published between the check in queueNext() and clearing busy would be left behind
+                if (serialBuffer.getWriteBuffer().size() == 0 && serialBuffer.peekWriteOverflow() == null)
+                    return;
+            }
+        }
+
+        /*
+         * Queues the next transfer the way WriteThread would send it: cut by the write scheduler, at most one tracked
+         * write per transfer and bounded by that write's deadline, USB_TIMEOUT without one
+         */
+        private boolean queueNext() {
+            SerialRingBuffer ring = serialBuffer.getWriteBuffer();
+            SerialWriteTracker tracker = serialBuffer.getWriteTracker();
+            buffer.clear();
+            queuedWrite = null;
+            queuedSegment = false;
+            queuedEnd = false;
+            int timeout = USB_TIMEOUT;
+            int length;
+            if (zeroLengthPacket) {
+                zeroLengthPacket = false;
+                length = 0;
+            } else if (ring.readableLength() > 0) {
+                long position = ring.readPosition();
+                int readable = tracker.limit(position, ring.readableLength());
+                SerialWriteFuture write = tracker.at(position);
+                if (write != null) {
+                    timeout = write.transferTimeout(USB_TIMEOUT);
+                    if (timeout < 0) {
+                        // Deadline passed or the write already failed, what is left of it is dropped
+                        tracker.onSent(write, position, readable, 0);
+                        ring.consume(readable);
+                        return false;
+                    }
+                }
+                length = writeScheduler.nextChunk(readable);
+                buffer.put(ring.array(), ring.readOffset(), length);
+                ring.consume(length);
+                queuedPosition = position;
+                queuedWrite = write;
+                queuedEnd = length == readable;
+            } else {
+                // Segments chained by WRITE_OVERFLOW_GROW go out once the ring is empty
+                byte[] segment = serialBuffer.peekWriteOverflow();
+                if (segment == null)
+                    return false;
+                length = writeScheduler.nextChunk(segment.length - segmentOffset);
+                buffer.put(segment, segmentOffset, length);
+                queuedSegment = true;
+                queuedEnd = segmentOffset + length == segment.length;
+            }
+
+            queuedLength = length;
+            expired = false;
+            // Armed before queueing, a completion never runs ahead of it
+            deadlineTask.setIntervalBounds(timeout, timeout);
+            SerialPollScheduler.getInstance().schedule(deadlineTask);
+            if (!request.queue(buffer, length)) {
+                SerialPollScheduler.getInstance().cancel(deadlineTask);
+                onSent(0);
+                return false;
+            }
+            reactor.onQueued();
+            return true;
+        }
+
+        /*
+         * The device accepted sent of the queuedLength bytes queued. A failed transfer fails its write and drops what
+         * is left of a segment, as WriteThread does
+         */
+        private void onSent(int sent) {
+            writeScheduler.onWritten(queuedLength, sent);
+            if (queuedWrite != null)
+                serialBuffer.getWriteTracker().onSent(queuedWrite, queuedPosition, queuedLength, sent);
+            if (queuedSegment) {
+                segmentOffset += queuedLength;
+                if (sent < queuedLength || queuedEnd) {
+                    serialBuffer.pollWriteOverflow();
+                    segmentOffset = 0;
+                }
+            }
+            if (sent == queuedLength && queuedEnd && writeScheduler.needsZeroLengthPacket(queuedLength))
+                zeroLengthPacket = true;
+        }
+
+        @Override
+        public void onRequestCompleted(UsbRequest request) {
+            SerialPollScheduler.getInstance().cancel(deadlineTask);
+            if (!closing)
+                onSent(expired ? 0 : queuedLength);
+            busy.set(false);
+            if (closing) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            } else {
+                kick();
+            }
+        }
+
+        /*
+         * Keeps sending what is already queued for up to drainTimeout, then cancels the request in flight and
+         * closes it once the reactor has returned it
+         */
+        boolean close(long drainTimeout, long timeout) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeout);
+            synchronized (this) {
+                while ((busy.get() || serialBuffer.getQueuedBytes() > 0) && System.nanoTime() - deadline < 0) {
+                    try {
+                        wait(10);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                closing = true;
+                serialBuffer.getWriteBuffer().setDataListener(null);
+
+                deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+                while (busy.get()) {
+                    request.cancel();
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0)
+                        return false; // Leaked rather than freed while the kernel may still use it
+                    try {
+                        wait(Math.min(remaining, 10));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+            }
+            request.close();
+            return true;
         }
     }
 
-    protected class WriteThread extends Thread {
-        private UsbEndpoint outEndpoint;
-        private AtomicBoolean working;
+    /*
+     * Bulk transfers on the OUT endpoint for the write scheduler
+     */
+    private class OutTransport implements SerialWriteScheduler.Transport {
+        private UsbEndpoint endpoint;
+        private byte[] dataCompatible; // bulkTransfer with offset is not available on android < 4.3
+
+        @Override
+        public int bulkTransfer(byte[] data, int offset, int length, int timeout) {
+            if (offset == 0)
+                return connection.bulkTransfer(endpoint, data, length, timeout);
+            if (mr1Version)
+                return connection.bulkTransfer(endpoint, data, offset, length, timeout);
+
+            if (dataCompatible == null || dataCompatible.length < length)
+                dataCompatible = new byte[Math.max(length, SerialWriteScheduler.MAX_TRANSFER_SIZE)];
+            System.arraycopy(data, offset, dataCompatible, 0, length);
+            return connection.bulkTransfer(endpoint, dataCompatible, length, timeout);
+        }
+    }
+
+    /*
+     * WriteThread drains the write ring in place, contiguous regions go to the write scheduler without a copy.
+     * Once stopped it keeps sending what is already queued until it is empty or the drain timeout passes
+     */
+    protected class WriteThread extends SerialThread {
+        private final OutTransport transport = new OutTransport();
+        private final long drainTimeout;
 
         public WriteThread() {
-            working = new AtomicBoolean(true);
+            this(DEFAULT_WRITE_DRAIN_TIMEOUT);
+        }
+
+        WriteThread(long drainTimeout) {
+            this.drainTimeout = TimeUnit.MILLISECONDS.toNanos(drainTimeout);
         }
 
         @Override
-        public void run() {
-            while (working.get()) {
-                byte[] data = serialBuffer.getWriteBuffer();
-                if (data.length > 0)
-                    connection.bulkTransfer(outEndpoint, data, data.length, USB_TIMEOUT);
+        void work() {
+            SerialRingBuffer ring = serialBuffer.getWriteBuffer();
+            SerialWriteTracker tracker = serialBuffer.getWriteTracker();
+            ring.setConsumer(this);
+            boolean draining = false;
+            long drainDeadline = 0;
+            while (true) {
+                int length = ring.readableLength();
+                if (!isRunning()) {
+                    if (!draining) {
+                        draining = true;
+                        drainDeadline = System.nanoTime() + drainTimeout;
+                    }
+                    if (System.nanoTime() - drainDeadline >= 0 || (length == 0 && serialBuffer.peekWriteOverflow() == null))
+                        break;
+                }
+
+                if (length == 0) {
+                    // Segments chained by WRITE_OVERFLOW_GROW go out once the ring is empty
+                    byte[] segment = serialBuffer.peekWriteOverflow();
+                    if (segment != null) {
+                        writeScheduler.writeStalling(transport, segment, 0, segment.length, USB_TIMEOUT);
+                        serialBuffer.pollWriteOverflow();
+                        continue;
+                    }
+                    length = ring.awaitReadable();
+                }
+                if (length > 0) {
+                    // Transfers stop at the boundaries of tracked writes, which may bring their own deadline
+                    long position = ring.readPosition();
+                    length = tracker.limit(position, length);
+                    SerialWriteFuture write = tracker.at(position);
+                    int timeout = write != null ? write.transferTimeout(0) : 0;
+
+                    // Without a deadline only a transfer stalling for USB_TIMEOUT gives up. What is not sent is
+                    // dropped and counted as a failed write
+                    int sent = 0;
+                    if (timeout > 0)
+                        sent = writeScheduler.write(transport, ring.array(), ring.readOffset(), length, timeout);
+                    else if (timeout == 0)
+                        sent = writeScheduler.writeStalling(transport, ring.array(), ring.readOffset(), length,
+                                USB_TIMEOUT);
+                    if (write != null)
+                        tracker.onSent(write, position, length, sent);
+                    ring.consume(length);
+                }
             }
         }
 
         public void setUsbEndpoint(UsbEndpoint outEndpoint) {
-            this.outEndpoint = outEndpoint;
+            transport.endpoint = outEndpoint;
+        }
+
+        @Override
+        void wakeUp() {
+            serialBuffer.getWriteBuffer().wakeConsumer();
         }
 
         public void stopWriteThread() {
-            working.set(false);
+            requestStop();
         }
     }
 
-    protected class ReadThread extends Thread {
+    protected class ReadThread extends SerialThread {
         private UsbSerialDevice usbSerialDevice;
 
-        private UsbReadCallback callback;
+        private UsbReadBufferCallback callback;
         private UsbEndpoint inEndpoint;
-        private AtomicBoolean working;
+        private final CountDownLatch callbackLatch = new CountDownLatch(1);
 
         public ReadThread(UsbSerialDevice usbSerialDevice) {
             this.usbSerialDevice = usbSerialDevice;
-            working = new AtomicBoolean(true);
         }
 
-        public void setCallback(UsbReadCallback callback) {
+        public void setCallback(UsbReadBufferCallback callback) {
             this.callback = callback;
+            callbackLatch.countDown();
         }
 
         @Override
-        public void run() {
-            byte[] dataReceived = null;
+        void work() {
+            // Nothing is read until there is somebody to give it to
+            try {
+                callbackLatch.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(serialBuffer.getBufferCompatible());
+            ByteBuffer view = buffer.asReadOnlyBuffer();
 
-            while (working.get()) {
+            while (isRunning()) {
                 int numberBytes;
                 if (inEndpoint != null)
-                    numberBytes = connection.bulkTransfer(inEndpoint, serialBuffer.getBufferCompatible(), SerialBuffer.DEFAULT_READ_BUFFER_SIZE, 0);
+                    numberBytes = connection.bulkTransfer(inEndpoint, serialBuffer.getBufferCompatible(),
+                            Math.min(readSizer.getSize(), buffer.capacity()), READ_POLL_TIMEOUT);
                 else
                     numberBytes = 0;
 
                 if (numberBytes > 0) {
-                    dataReceived = serialBuffer.getDataReceivedCompatible(numberBytes);
-
+                    readSizer.onCompleted(numberBytes);
                     // FTDI devices reserve two first bytes of an IN endpoint with info about
                     // modem and Line.
                     if (isFTDIDevice()) {
-                        ((FTDISerialDevice) usbSerialDevice).ftdiUtilities.checkModemStatus(dataReceived);
-
-                        if (dataReceived.length > 2) {
-                            dataReceived = ((FTDISerialDevice) usbSerialDevice).ftdiUtilities.adaptArray(dataReceived);
-                            onReceivedData(dataReceived);
-                        }
-                    } else {
-                        onReceivedData(dataReceived);
+                        numberBytes = ((FTDISerialDevice) usbSerialDevice).ftdiUtilities.adaptBuffer(buffer, numberBytes);
                     }
+
+                    if (numberBytes > 0)
+                        onReceivedData(view, numberBytes);
                 }
             }
         }
@@ -355,24 +1306,94 @@ public abstract class UsbSerialDevice implements UsbSerialInterface {
             this.inEndpoint = inEndpoint;
         }
 
+        @Override
+        void wakeUp() {
+            interrupt(); // Leaves the wait for a callback, transfers time out on their own
+        }
+
         public void stopReadThread() {
-            working.set(false);
+            requestStop();
+        }
+
+        private void onReceivedData(ByteBuffer view, int length) {
+            if (callback != null) {
+                view.limit(length).position(0);
+                callback.onReceivedData(view);
+            }
+        }
+    }
+
+    /*
+     * Serves byte[] callbacks from the zero copy read path, one array is allocated per completion
+     */
+    private static class ReadCallbackAdapter implements UsbReadBufferCallback {
+        private final UsbReadCallback callback;
+
+        ReadCallbackAdapter(UsbReadCallback callback) {
+            this.callback = callback;
         }
 
-        private void onReceivedData(byte[] data) {
-            if (callback != null)
-                callback.onReceivedData(data);
+        @Override
+        public void onReceivedData(ByteBuffer data) {
+            byte[] dst = new byte[data.remaining()];
+            data.get(dst);
+            callback.onReceivedData(dst);
+        }
+    }
+
+    /*
+     * Copies each completion into a pooled chunk owned by the callback
+     */
+    private static class ReadChunkAdapter implements UsbReadBufferCallback {
+        private final SerialBufferPool pool;
+        private final UsbReadChunkCallback callback;
+
+        ReadChunkAdapter(SerialBufferPool pool, UsbReadChunkCallback callback) {
+            this.pool = pool;
+            this.callback = callback;
+        }
+
+        @Override
+        public void onReceivedData(ByteBuffer data) {
+            callback.onReceivedData(pool.acquire(data));
+        }
+    }
+
+    /*
+     * Serves buffer callbacks from the dispatch queue, the chunk goes back to the pool once the callback returns
+     */
+    private static class ChunkBufferAdapter implements UsbReadChunkCallback {
+        private final UsbReadBufferCallback callback;
+
+        ChunkBufferAdapter(UsbReadBufferCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void onReceivedData(SerialBufferPool.Chunk chunk) {
+            try {
+                callback.onReceivedData(chunk.buffer());
+            } finally {
+                chunk.release();
+            }
         }
     }
 
     void setSyncParams(UsbEndpoint inEndpoint, UsbEndpoint outEndpoint) {
         this.inEndpoint = inEndpoint;
-        this.outEndpoint = outEndpoint;
+        syncTransport.endpoint = outEndpoint;
+        resetTransferSizes(inEndpoint, outEndpoint);
     }
 
     void setThreadsParams(UsbRequest request, UsbEndpoint endpoint) {
-        if (mr1Version) {
+        resetTransferSizes(request.getEndpoint(), endpoint);
+        if (mr1Version && reactor != null) {
+            readChannel = new ReadChannel(reactor);
+            readChannel.setUsbRequest(request);
+            writeChannel = new WriteChannel(reactor, endpoint);
+        } else if (mr1Version) {
             workerThread.setUsbRequest(request);
+            readChannel = workerThread.getChannel();
             writeThread.setUsbEndpoint(endpoint);
         } else {
             readThread.setUsbEndpoint(request.getEndpoint());
@@ -381,14 +1402,34 @@ public abstract class UsbSerialDevice implements UsbSerialInterface {
     }
 
     /*
-     * Kill workingThread; This must be called when closing a device
+     * The chip is back to its initial baud rate once opened
+     */
+    private void resetTransferSizes(UsbEndpoint inEndpoint, UsbEndpoint outEndpoint) {
+        int initialBaudRate = getInitialBaudRate();
+        int baudRate = initialBaudRate > 0 ? initialBaudRate : SerialConfig.DEFAULT.getBaudRate();
+        readSizer.reset(inEndpoint.getMaxPacketSize(), baudRate);
+        serialBuffer.setReadChunkSize(readSizer.getMaxSize());
+        writeScheduler.reset(outEndpoint.getMaxPacketSize(), baudRate);
+    }
+
+    /*
+     * Kill workingThread; This must be called when closing a device.
+     * Returns once the thread has exited and its requests are closed
      */
     void killWorkingThread() {
-        if (mr1Version && workerThread != null) {
-            workerThread.stopWorkingThread();
+        if (readDispatcher != null)
+            readDispatcher.stop();
+        if (mr1Version && reactor != null) {
+            if (readChannel != null)
+                readChannel.close(USB_TIMEOUT);
+            readChannel = null;
+            releaseReactor();
+        } else if (mr1Version && workerThread != null) {
+            workerThread.stopAndJoin(USB_TIMEOUT);
             workerThread = null;
+            readChannel = null;
         } else if (!mr1Version && readThread != null) {
-            readThread.stopReadThread();
+            readThread.stopAndJoin(USB_TIMEOUT);
             readThread = null;
         }
     }
@@ -397,33 +1438,50 @@ public abstract class UsbSerialDevice implements UsbSerialInterface {
      * Restart workingThread if it has been killed before
      */
     void restartWorkingThread() {
-        if (mr1Version && workerThread == null) {
-            workerThread = new WorkerThread(this);
-            workerThread.start();
-            while (!workerThread.isAlive()) {
-            } // Busy waiting
+        if (mr1Version && reactorMode) {
+            if (reactor == null)
+                reactor = SerialReactor.acquire(connection);
+        } else if (mr1Version && workerThread == null) {
+            workerThread = new WorkerThread();
+            workerThread.startAndAwait();
         } else if (!mr1Version && readThread == null) {
             readThread = new ReadThread(this);
-            readThread.start();
-            while (!readThread.isAlive()) {
-            } // Busy waiting
+            readThread.startAndAwait();
         }
     }
 
+    /*
+     * Data already queued keeps going out for up to the drain timeout, the rest is dropped
+     */
     void killWriteThread() {
-        if (writeThread != null) {
-            writeThread.stopWriteThread();
+        if (writeChannel != null) {
+            writeChannel.close(writeDrainTimeout, USB_TIMEOUT);
+            writeChannel = null;
+            serialBuffer.resetWriteBuffer();
+            releaseReactor();
+        } else if (writeThread != null) {
+            writeThread.stopAndJoin(writeDrainTimeout + USB_TIMEOUT);
             writeThread = null;
             serialBuffer.resetWriteBuffer();
         }
     }
 
     void restartWriteThread() {
+        if (mr1Version && reactorMode)
+            return; // The write channel is created with the endpoint in setThreadsParams()
         if (writeThread == null) {
-            writeThread = new WriteThread();
-            writeThread.start();
-            while (!writeThread.isAlive()) {
-            } // Busy waiting
+            writeThread = new WriteThread(writeDrainTimeout);
+            writeThread.startAndAwait();
+        }
+    }
+
+    /*
+     * The reactor is given back once both channels are closed
+     */
+    private void releaseReactor() {
+        if (reactor != null && readChannel == null && writeChannel == null) {
+            reactor.release();
+            reactor = null;
         }
     }
 }
@@ -1,5 +1,7 @@
 package com.perpule.serialcommunication.usbserial;
 
+import java.nio.ByteBuffer;
+
 /**
  * Interface to handle a serial port
  *
@@ -27,13 +29,41 @@ public interface UsbSerialInterface {
     int FLOW_CONTROL_DSR_DTR = 2;
     int FLOW_CONTROL_XON_XOFF = 3;
 
+    // Write overflow policies
+    int WRITE_OVERFLOW_BLOCK = 0; // Wait until the data fits or the timeout expires
+    int WRITE_OVERFLOW_FAIL = 1; // Queue all the data or nothing at all
+    int WRITE_OVERFLOW_GROW = 2; // Chain extra segments behind the write buffer
+
     // Common Usb Serial Operations (I/O Asynchronous)
     boolean open();
 
+    /**
+     * Queues all of buffer without blocking, data that does not fit in the write buffer grows it as with
+     * {@link #WRITE_OVERFLOW_GROW}. Use {@link #write(byte[], int, int)} to bound the memory used or learn how much was
+     * queued.
+     */
     void write(byte[] buffer);
 
+    int write(byte[] buffer, int overflowPolicy, int timeout);
+
+    // Gather writes, the remaining bytes of the buffers go out back to back as one write
+    int write(ByteBuffer... buffers);
+
+    int write(ByteBuffer[] buffers, int overflowPolicy, int timeout);
+
+    // Writes with a completion handle and a deadline of their own
+    SerialWriteFuture writeAsync(byte[] buffer, int timeout);
+
+    SerialWriteFuture writeAsync(ByteBuffer[] buffers, int timeout);
+
+    int getQueuedBytes();
+
     int read(UsbReadCallback mCallback);
 
+    int readBuffers(UsbReadBufferCallback mCallback);
+
+    int readChunks(UsbReadChunkCallback mCallback);
+
     void close();
 
     // Common Usb Serial Operations (I/O Synchronous)
@@ -41,6 +71,8 @@ public interface UsbSerialInterface {
 
     int syncWrite(byte[] buffer, int timeout);
 
+    int syncWrite(ByteBuffer[] buffers, int timeout);
+
     int syncRead(byte[] buffer, int timeout);
 
     void syncClose();
@@ -56,6 +88,9 @@ public interface UsbSerialInterface {
 
     void setFlowControl(int flowControl);
 
+    // Applies a whole configuration, only the values that changed are sent to the device
+    void configure(SerialConfig config);
+
     // Flow control commands and interface callback
     void setRTS(boolean state);
 
@@ -99,9 +134,41 @@ public interface UsbSerialInterface {
         void onParityError();
     }
 
+    /**
+     * Coalesced line error event. error is one of {@link SerialLineErrors#PARITY}, {@link SerialLineErrors#FRAMING},
+     * {@link SerialLineErrors#OVERRUN} or {@link SerialLineErrors#BREAK}, count the occurrences since the previous event
+     * of that type.
+     */
+    interface UsbErrorEventCallback {
+        void onLineError(int error, int count);
+    }
+
+    /**
+     * Completion of a {@link #writeAsync(byte[], int)}, called on the thread that sent its last byte or failed it
+     */
+    interface UsbWriteCallback {
+        void onWriteCompleted(SerialWriteFuture write);
+    }
+
     // Usb Read Callback
     interface UsbReadCallback {
         void onReceivedData(byte[] data);
     }
 
+    /**
+     * Zero copy Usb Read Callback. data is a read-only view of the completed transfer between its position and limit,
+     * it is reused as soon as the callback returns so it must not be kept or handed to another thread.
+     */
+    interface UsbReadBufferCallback {
+        void onReceivedData(ByteBuffer data);
+    }
+
+    /**
+     * Pooled Usb Read Callback. The callback owns chunk and may hand it to another thread,
+     * {@link SerialBufferPool.Chunk#release()} must be called once it is no longer needed.
+     */
+    interface UsbReadChunkCallback {
+        void onReceivedData(SerialBufferPool.Chunk chunk);
+    }
+
 }
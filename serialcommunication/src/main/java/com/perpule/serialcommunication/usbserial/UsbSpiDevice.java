@@ -7,13 +7,22 @@ import android.hardware.usb.UsbEndpoint;
 
 import com.perpule.serialcommunication.deviceids.CP2130Ids;
 
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.TimeUnit;
 
 public abstract class UsbSpiDevice implements UsbSpiInterface {
     private static final String CLASS_ID = UsbSerialDevice.class.getSimpleName();
 
     static final int USB_TIMEOUT = 5000;
 
+    static final int WRITE_DRAIN_TIMEOUT = 500;
+
+    // MISO transfers give up after this long so a stop request is noticed
+    static final int READ_POLL_TIMEOUT = 100;
+
+    // bulkTransfer with an offset is available since android 4.3
+    private static final boolean mr2Version =
+            android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN_MR2;
+
     protected final UsbDevice device;
     protected final UsbDeviceConnection connection;
 
@@ -79,54 +88,75 @@ public abstract class UsbSpiDevice implements UsbSpiInterface {
     @Override
     public abstract void closeSPI();
 
-    protected class WriteThread extends Thread {
+    /*
+     * Once stopped it keeps sending what is already queued until it is empty or the drain timeout passes
+     */
+    protected class WriteThread extends SerialThread {
         private UsbEndpoint outEndpoint;
-        private AtomicBoolean working;
-
-        public WriteThread() {
-            working = new AtomicBoolean(true);
-        }
+        private byte[] dataCompatible; // bulkTransfer with offset is not available on android < 4.3
 
         @Override
-        public void run() {
-            while (working.get()) {
-                byte[] data = serialBuffer.getWriteBuffer();
-                if (data.length > 0)
-                    connection.bulkTransfer(outEndpoint, data, data.length, USB_TIMEOUT);
+        void work() {
+            SerialRingBuffer ring = serialBuffer.getWriteBuffer();
+            ring.setConsumer(this);
+            long drainDeadline = 0;
+            while (true) {
+                if (!isRunning()) {
+                    if (drainDeadline == 0)
+                        drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WRITE_DRAIN_TIMEOUT);
+                    if (ring.size() == 0 || System.nanoTime() - drainDeadline >= 0)
+                        break;
+                }
+
+                int length = ring.awaitReadable();
+                if (length > 0) {
+                    transfer(ring.array(), ring.readOffset(), length);
+                    ring.consume(length);
+                }
             }
         }
 
+        private int transfer(byte[] data, int offset, int length) {
+            if (mr2Version)
+                return connection.bulkTransfer(outEndpoint, data, offset, length, USB_TIMEOUT);
+
+            if (dataCompatible == null)
+                dataCompatible = new byte[data.length];
+            System.arraycopy(data, offset, dataCompatible, 0, length);
+            return connection.bulkTransfer(outEndpoint, dataCompatible, length, USB_TIMEOUT);
+        }
+
         public void setUsbEndpoint(UsbEndpoint outEndpoint) {
             this.outEndpoint = outEndpoint;
         }
 
+        @Override
+        void wakeUp() {
+            serialBuffer.getWriteBuffer().wakeConsumer();
+        }
+
         public void stopWriteThread() {
-            working.set(false);
+            requestStop();
         }
     }
 
-    protected class ReadThread extends Thread {
+    protected class ReadThread extends SerialThread {
         private UsbMISOCallback misoCallback;
         private UsbEndpoint inEndpoint;
-        private AtomicBoolean working;
-
-        public ReadThread() {
-            working = new AtomicBoolean(true);
-        }
 
         public void setCallback(UsbMISOCallback misoCallback) {
             this.misoCallback = misoCallback;
         }
 
         @Override
-        public void run() {
+        void work() {
             byte[] dataReceived = null;
 
-            while (working.get()) {
+            while (isRunning()) {
                 int numberBytes;
                 if (inEndpoint != null)
                     numberBytes = connection.bulkTransfer(inEndpoint, serialBuffer.getBufferCompatible(),
-                            SerialBuffer.DEFAULT_READ_BUFFER_SIZE, 0);
+                            SerialBuffer.DEFAULT_READ_BUFFER_SIZE, READ_POLL_TIMEOUT);
                 else
                     numberBytes = 0;
 
@@ -143,7 +173,7 @@ public abstract class UsbSpiDevice implements UsbSpiInterface {
         }
 
         public void stopReadThread() {
-            working.set(false);
+            requestStop();
         }
 
         private void onReceivedData(byte[] data) {
@@ -161,11 +191,12 @@ public abstract class UsbSpiDevice implements UsbSpiInterface {
     }
 
     /*
-     * Kill workingThread; This must be called when closing a device
+     * Kill workingThread; This must be called when closing a device.
+     * Returns once the thread has exited
      */
     void killWorkingThread() {
         if (readThread != null) {
-            readThread.stopReadThread();
+            readThread.stopAndJoin(USB_TIMEOUT);
             readThread = null;
         }
     }
@@ -174,15 +205,18 @@ public abstract class UsbSpiDevice implements UsbSpiInterface {
      * Restart workingThread if it has been killed before
      */
     void restartWorkingThread() {
-        readThread = new ReadThread();
-        readThread.start();
-        while (!readThread.isAlive()) {
-        } // Busy waiting
+        if (readThread == null) {
+            readThread = new ReadThread();
+            readThread.startAndAwait();
+        }
     }
 
+    /*
+     * Data already queued keeps going out for up to WRITE_DRAIN_TIMEOUT, the rest is dropped
+     */
     void killWriteThread() {
         if (writeThread != null) {
-            writeThread.stopWriteThread();
+            writeThread.stopAndJoin(WRITE_DRAIN_TIMEOUT + USB_TIMEOUT);
             writeThread = null;
             serialBuffer.resetWriteBuffer();
         }
@@ -191,9 +225,7 @@ public abstract class UsbSpiDevice implements UsbSpiInterface {
     void restartWriteThread() {
         if (writeThread == null) {
             writeThread = new WriteThread();
-            writeThread.start();
-            while (!writeThread.isAlive()) {
-            } // Busy waiting
+            writeThread.startAndAwait();
         }
     }
 }
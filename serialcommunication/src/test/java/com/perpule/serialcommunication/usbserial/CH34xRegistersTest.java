@@ -0,0 +1,90 @@
+package com.perpule.serialcommunication.usbserial;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CH34xRegistersTest {
+    // Baud rate and the prescaler/divisor value ch341_get_divisor() returns for it
+    private static final int[][] LINUX_DIVISORS = {
+            {46, 0x0100},
+            {50, 0x1600},
+            {110, 0x2b04},
+            {300, 0xd900},
+            {1200, 0xb201},
+            {2400, 0xd901},
+            {4800, 0x6402},
+            {9600, 0xb202},
+            {14400, 0xcc02},
+            {19200, 0xd902},
+            {38400, 0x6403},
+            {57600, 0x9803},
+            {115200, 0xcc03},
+            {230400, 0xe603},
+            {250000, 0xe803},
+            {460800, 0xf303},
+            {921600, 0xf307},
+            {1000000, 0xfa03},
+            {1500000, 0xfc03},
+            {2000000, 0xfd03},
+            {3000000, 0xfe03}
+    };
+
+    @Test
+    public void getDivisor_matchesLinuxDriver() {
+        for (int[] entry : LINUX_DIVISORS)
+            assertEquals("baud rate " + entry[0], entry[1], CH34xRegisters.getDivisor(entry[0]));
+    }
+
+    @Test
+    public void getDivisor_noBufferingBitOnlyAfterVersion27() {
+        assertEquals(0xb202, CH34xRegisters.getDivisor(9600, 0x27));
+        assertEquals(0xb282, CH34xRegisters.getDivisor(9600, 0x30));
+        assertEquals(0xcc03, CH34xRegisters.getDivisor(115200, 0x27));
+        assertEquals(0xcc83, CH34xRegisters.getDivisor(115200, 0x31));
+    }
+
+    @Test
+    public void getDivisor_clampsToChipRange() {
+        assertEquals(CH34xRegisters.getDivisor(CH34xRegisters.MIN_BAUD_RATE), CH34xRegisters.getDivisor(1));
+        assertEquals(CH34xRegisters.getDivisor(CH34xRegisters.MAX_BAUD_RATE), CH34xRegisters.getDivisor(12000000));
+    }
+
+    @Test
+    public void getBaudRate_staysClose() {
+        for (int[] entry : LINUX_DIVISORS) {
+            int actual = CH34xRegisters.getBaudRate(entry[1]);
+            double error = Math.abs(actual - entry[0]) / (double) entry[0];
+            assertTrue("baud rate " + entry[0] + " gives " + actual, error < 0.03);
+        }
+        assertEquals(9615, CH34xRegisters.getBaudRate(CH34xRegisters.getDivisor(9600)));
+    }
+
+    @Test
+    public void getLineControl_matchesLegacyParityValues() {
+        SerialConfig config = SerialConfig.DEFAULT;
+        assertEquals(0xc3, CH34xRegisters.getLineControl(config));
+        assertEquals(0xcb, CH34xRegisters.getLineControl(config.withParity(UsbSerialInterface.PARITY_ODD)));
+        assertEquals(0xdb, CH34xRegisters.getLineControl(config.withParity(UsbSerialInterface.PARITY_EVEN)));
+        assertEquals(0xeb, CH34xRegisters.getLineControl(config.withParity(UsbSerialInterface.PARITY_MARK)));
+        assertEquals(0xfb, CH34xRegisters.getLineControl(config.withParity(UsbSerialInterface.PARITY_SPACE)));
+    }
+
+    @Test
+    public void getLineControl_dataAndStopBits() {
+        SerialConfig config = SerialConfig.DEFAULT.withDataBits(UsbSerialInterface.DATA_BITS_7)
+                .withStopBits(UsbSerialInterface.STOP_BITS_2);
+        assertEquals(0xc6, CH34xRegisters.getLineControl(config));
+        assertEquals(0xc0, CH34xRegisters.getLineControl(SerialConfig.DEFAULT.withDataBits(UsbSerialInterface.DATA_BITS_5)));
+    }
+
+    @Test
+    public void hasLineControl_fromVersion30() {
+        assertFalse(CH34xRegisters.hasLineControl(0x27));
+        assertFalse(CH34xRegisters.hasLineControl(0x2f));
+        assertTrue(CH34xRegisters.hasLineControl(0x30));
+        assertTrue(CH34xRegisters.hasLineControl(0x31));
+    }
+}
@@ -0,0 +1,101 @@
+package com.perpule.serialcommunication.usbserial;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FTDIBaudRateTest {
+    // Baud rate and the divisor of the former fixed table, all of them BM encodings
+    private static final int[][] LEGACY_DIVISORS = {
+            {300, FTDISerialDevice.FTDI_BAUDRATE_300},
+            {600, FTDISerialDevice.FTDI_BAUDRATE_600},
+            {1200, FTDISerialDevice.FTDI_BAUDRATE_1200},
+            {2400, FTDISerialDevice.FTDI_BAUDRATE_2400},
+            {4800, FTDISerialDevice.FTDI_BAUDRATE_4800},
+            {9600, FTDISerialDevice.FTDI_BAUDRATE_9600},
+            {19200, FTDISerialDevice.FTDI_BAUDRATE_19200},
+            {38400, FTDISerialDevice.FTDI_BAUDRATE_38400},
+            {115200, FTDISerialDevice.FTDI_BAUDRATE_115200},
+            {230400, FTDISerialDevice.FTDI_BAUDRATE_230400},
+            {460800, FTDISerialDevice.FTDI_BAUDRATE_460800},
+            {921600, FTDISerialDevice.FTDI_BAUDRATE_921600}
+    };
+
+    @Test
+    public void compute_matchesLegacyTable() {
+        for (int[] entry : LEGACY_DIVISORS) {
+            FTDIBaudRate rate = FTDIBaudRate.compute(entry[0], FTDIBaudRate.CHIP_R, 0);
+            assertEquals("baud rate " + entry[0], entry[1], rate.getValue());
+            assertEquals("baud rate " + entry[0], 0, rate.getIndex());
+        }
+    }
+
+    @Test
+    public void compute_usesFractionalDivisors() {
+        // 52.125 instead of the 52 the fixed table had, 57554 baud instead of 57692
+        FTDIBaudRate rate = FTDIBaudRate.compute(57600, FTDIBaudRate.CHIP_R, 0);
+        assertEquals(0xc034, rate.getValue());
+        assertEquals(57554, rate.getActualBaudRate());
+    }
+
+    @Test
+    public void compute_subIntegerDivisors() {
+        assertEquals(0, FTDIBaudRate.compute(3000000, FTDIBaudRate.CHIP_BM, 0).getValue());
+        assertEquals(1, FTDIBaudRate.compute(2000000, FTDIBaudRate.CHIP_BM, 0).getValue());
+        assertEquals(2, FTDIBaudRate.compute(1500000, FTDIBaudRate.CHIP_BM, 0).getValue());
+        assertEquals(3000000, FTDIBaudRate.compute(12000000, FTDIBaudRate.CHIP_BM, 0).getActualBaudRate());
+    }
+
+    @Test
+    public void compute_highSpeedClock() {
+        FTDIBaudRate rate = FTDIBaudRate.compute(12000000, FTDIBaudRate.CHIP_2232H, 1);
+        assertEquals(0, rate.getValue());
+        assertEquals(0x0201, rate.getIndex());
+        assertEquals(12000000, rate.getActualBaudRate());
+
+        rate = FTDIBaudRate.compute(3000000, FTDIBaudRate.CHIP_232H, 0);
+        assertEquals(4, rate.getValue());
+        assertEquals(0x0200, rate.getIndex());
+        assertEquals(3000000, rate.getActualBaudRate());
+
+        assertEquals(6000000, FTDIBaudRate.compute(6000000, FTDIBaudRate.CHIP_4232H, 2).getActualBaudRate());
+        assertEquals(2000000, FTDIBaudRate.compute(2000000, FTDIBaudRate.CHIP_4232H, 2).getActualBaudRate());
+        assertEquals(2, FTDIBaudRate.compute(2000000, FTDIBaudRate.CHIP_4232H, 2).getIndex() & 0xff);
+    }
+
+    @Test
+    public void compute_reportsError() {
+        FTDIBaudRate rate = FTDIBaudRate.compute(1000000, FTDIBaudRate.CHIP_R, 0);
+        assertEquals(1000000, rate.getActualBaudRate());
+        assertEquals(0.0, rate.getError(), 0);
+
+        // Divisors are coarse close to the sub-integer ones
+        for (int baudRate = 300; baudRate <= 1000000; baudRate += 997) {
+            rate = FTDIBaudRate.compute(baudRate, FTDIBaudRate.CHIP_R, 0);
+            assertTrue("baud rate " + baudRate + " gives " + rate.getActualBaudRate(), Math.abs(rate.getError()) < 0.03);
+        }
+    }
+
+    @Test
+    public void compute_amAndSio() {
+        assertEquals(0x4138, FTDIBaudRate.compute(9600, FTDIBaudRate.CHIP_AM, 0).getValue());
+        assertEquals(9600, FTDIBaudRate.compute(9600, FTDIBaudRate.CHIP_AM, 0).getActualBaudRate());
+        assertEquals(5, FTDIBaudRate.compute(9600, FTDIBaudRate.CHIP_SIO, 0).getValue());
+        assertEquals(115200, FTDIBaudRate.compute(230400, FTDIBaudRate.CHIP_SIO, 0).getActualBaudRate());
+    }
+
+    @Test
+    public void getChipType_fromBcdDevice() {
+        assertEquals(FTDIBaudRate.CHIP_SIO, FTDIBaudRate.getChipType(0x100, 1));
+        assertEquals(FTDIBaudRate.CHIP_AM, FTDIBaudRate.getChipType(0x200, 1));
+        assertEquals(FTDIBaudRate.CHIP_BM, FTDIBaudRate.getChipType(0x400, 1));
+        assertEquals(FTDIBaudRate.CHIP_R, FTDIBaudRate.getChipType(0x600, 1));
+        assertEquals(FTDIBaudRate.CHIP_232H, FTDIBaudRate.getChipType(0x900, 1));
+        assertEquals(FTDIBaudRate.CHIP_X, FTDIBaudRate.getChipType(0x1000, 1));
+        assertEquals(FTDIBaudRate.CHIP_2232C, FTDIBaudRate.getChipType(0x500, 2));
+        assertEquals(FTDIBaudRate.CHIP_2232H, FTDIBaudRate.getChipType(0x700, 2));
+        assertEquals(FTDIBaudRate.CHIP_4232H, FTDIBaudRate.getChipType(0x800, 4));
+        assertEquals(FTDIBaudRate.CHIP_BM, FTDIBaudRate.getChipType(-1, 1));
+    }
+}
@@ -0,0 +1,152 @@
+package com.perpule.serialcommunication.usbserial;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FTDIPacketStripperTest {
+    private static final int[] LENGTHS = {2, 3, 63, 64, 66, 128, 130, 4000, 4096};
+
+    @Test
+    public void strip_matchesLegacyAdaptArray() {
+        for (int length : LENGTHS) {
+            byte[] ftdiData = ftdiData(length);
+            byte[] expected = legacyAdaptArray(ftdiData);
+
+            byte[] dst = new byte[length];
+            int written = FTDIPacketStripper.strip(ftdiData, 0, length, dst, 0, 64);
+
+            assertEquals("length " + length, expected.length, written);
+            assertEquals("length " + length, expected.length, FTDIPacketStripper.strippedLength(length, 64));
+            assertArrayEquals(expected, Arrays.copyOf(dst, written));
+        }
+    }
+
+    @Test
+    public void strip_inPlace() {
+        byte[] ftdiData = ftdiData(4096);
+        byte[] expected = legacyAdaptArray(ftdiData);
+
+        int written = FTDIPacketStripper.strip(ftdiData, 0, ftdiData.length, 64);
+
+        assertArrayEquals(expected, Arrays.copyOf(ftdiData, written));
+    }
+
+    @Test
+    public void strip_directBufferInPlace() {
+        for (int length : LENGTHS) {
+            byte[] ftdiData = ftdiData(length);
+            byte[] expected = legacyAdaptArray(ftdiData);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(SerialBuffer.DEFAULT_READ_BUFFER_SIZE);
+            buffer.put(ftdiData);
+
+            int written = FTDIPacketStripper.strip(buffer, length, 64, null);
+
+            byte[] stripped = new byte[written];
+            buffer.clear();
+            buffer.get(stripped);
+            assertEquals("length " + length, expected.length, written);
+            assertArrayEquals(expected, stripped);
+        }
+    }
+
+    @Test
+    public void strip_highSpeedPackets() {
+        byte[] ftdiData = ftdiData(1030, 512);
+
+        byte[] dst = new byte[ftdiData.length];
+        int written = FTDIPacketStripper.strip(ftdiData, 0, ftdiData.length, dst, 0, 512);
+
+        assertEquals(1024, written);
+        assertEquals(1024, FTDIPacketStripper.strippedLength(ftdiData.length, 512));
+        for (int i = 0; i < written; i++)
+            assertEquals((byte) i, dst[i]);
+    }
+
+    @Test
+    public void strip_reportsStatusOfEveryPacket() {
+        byte[] ftdiData = ftdiData(200);
+        ftdiData[64 + 1] |= 0x04; // Parity error in the second packet
+        ftdiData[192 + 1] |= 0x02; // Overrun in the last, partial packet
+        final int[] lineErrors = new int[8];
+        final int[] count = new int[1];
+
+        int written = FTDIPacketStripper.strip(ftdiData, 0, ftdiData.length, ftdiData, 0, 64,
+                new FTDIPacketStripper.StatusListener() {
+                    @Override
+                    public void onPacketStatus(int modemStatus, int lineStatus, int offset, int length) {
+                        int errors = lineStatus & 0x1e;
+                        if (errors != 0) {
+                            lineErrors[count[0] * 3] = errors;
+                            lineErrors[count[0] * 3 + 1] = offset;
+                            lineErrors[count[0] * 3 + 2] = length;
+                            count[0]++;
+                        }
+                    }
+                });
+
+        assertEquals(192, written);
+        assertEquals(2, count[0]);
+        assertArrayEquals(new int[]{0x04, 62, 62, 0x02, 186, 6, 0, 0}, lineErrors);
+    }
+
+    private static byte[] ftdiData(int length) {
+        return ftdiData(length, 64);
+    }
+
+    /*
+     * Status bytes 0x01 0x60 at the start of each packet followed by a running counter
+     */
+    private static byte[] ftdiData(int length, int packetSize) {
+        byte[] data = new byte[length];
+        int counter = 0;
+        for (int i = 0; i < length; i++) {
+            if (i % packetSize == 0)
+                data[i] = 0x01;
+            else if (i % packetSize == 1)
+                data[i] = 0x60;
+            else
+                data[i] = (byte) counter++;
+        }
+        return data;
+    }
+
+    /*
+     * FTDIUtilities.adaptArray and copyData as they were before FTDIPacketStripper
+     */
+    private static byte[] legacyAdaptArray(byte[] ftdiData) {
+        int length = ftdiData.length;
+        if (length > 64) {
+            int n = 1;
+            int p = 64;
+            while (p < length) {
+                n++;
+                p = n * 64;
+            }
+            int realLength = length - n * 2;
+            byte[] data = new byte[realLength];
+            int i = 0;
+            int j = 0;
+            while (i <= ftdiData.length - 1) {
+                if (i != 0 && i != 1) {
+                    if (i % 64 == 0 && i >= 64) {
+                        i += 2;
+                    } else {
+                        data[j] = ftdiData[i];
+                        i++;
+                        j++;
+                    }
+                } else {
+                    i++;
+                }
+            }
+            return data;
+        } else {
+            return Arrays.copyOfRange(ftdiData, 2, length);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.perpule.serialcommunication.usbserial;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class SerialBufferPoolTest {
+
+    @Test
+    public void acquire_keepsChunksTooSmallForLargeData() {
+        SerialBufferPool pool = new SerialBufferPool(4, 64);
+        pool.acquire(ByteBuffer.allocate(64)).release();
+        assertEquals(1, pool.getAvailable());
+
+        SerialBufferPool.Chunk large = pool.acquire(ByteBuffer.allocate(100));
+        assertEquals(1, pool.getAvailable()); // Not used, but not lost either
+        large.release();
+        assertEquals(2, pool.getAvailable()); // Larger chunks are recycled as well
+
+        pool.acquire(ByteBuffer.allocate(10));
+        pool.acquire(ByteBuffer.allocate(10));
+        assertEquals(2, pool.getHits());
+        assertEquals(0, pool.getAvailable());
+    }
+
+    @Test
+    public void setChunkSize_letsSmallerChunksGo() {
+        SerialBufferPool pool = new SerialBufferPool(4, 64);
+        SerialBufferPool.Chunk chunk = pool.acquire(ByteBuffer.allocate(64));
+        pool.setChunkSize(16 * 1024);
+        chunk.release();
+        assertEquals(0, pool.getAvailable());
+
+        pool.acquire(ByteBuffer.allocate(64)).release();
+        assertEquals(1, pool.getAvailable());
+        assertEquals(16 * 1024, pool.acquire(ByteBuffer.allocate(16 * 1024)).array().length);
+        assertEquals(1, pool.getHits());
+    }
+
+    @Test
+    public void release_staleReferenceLeavesNextOwnerAlone() {
+        SerialBufferPool pool = new SerialBufferPool(4, 64);
+        SerialBufferPool.Chunk first = pool.acquire(ByteBuffer.allocate(10));
+        first.release();
+        SerialBufferPool.Chunk second = pool.acquire(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        assertSame(first.array(), second.array()); // Same storage, recycled
+
+        try {
+            first.release();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(1, pool.getOutstanding());
+        assertEquals(0, pool.getAvailable());
+        assertEquals(3, second.buffer().remaining());
+        second.release();
+        assertEquals(0, pool.getOutstanding());
+    }
+}
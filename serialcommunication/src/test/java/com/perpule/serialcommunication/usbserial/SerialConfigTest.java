@@ -0,0 +1,44 @@
+package com.perpule.serialcommunication.usbserial;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SerialConfigTest {
+
+    @Test
+    public void with_changesOneValue() {
+        SerialConfig even = SerialConfig.DEFAULT.withParity(UsbSerialInterface.PARITY_EVEN);
+
+        assertEquals(UsbSerialInterface.PARITY_EVEN, even.getParity());
+        assertEquals(UsbSerialInterface.PARITY_NONE, SerialConfig.DEFAULT.getParity());
+        assertNotEquals(SerialConfig.DEFAULT, even);
+        assertEquals(SerialConfig.DEFAULT, even.withParity(UsbSerialInterface.PARITY_NONE));
+        assertEquals(SerialConfig.DEFAULT.hashCode(), even.withParity(UsbSerialInterface.PARITY_NONE).hashCode());
+    }
+
+    @Test
+    public void frameDiffers_ignoresBaudRateAndFlowControl() {
+        SerialConfig config = SerialConfig.DEFAULT;
+
+        assertTrue(config.frameDiffers(null));
+        assertFalse(config.frameDiffers(config.withBaudRate(115200).withFlowControl(UsbSerialInterface.FLOW_CONTROL_RTS_CTS)));
+        assertTrue(config.frameDiffers(config.withStopBits(UsbSerialInterface.STOP_BITS_2)));
+        assertTrue(config.frameDiffers(config.withDataBits(UsbSerialInterface.DATA_BITS_7)));
+    }
+
+    @Test
+    public void getStopBitsCode_usesLineCodingEncoding() {
+        assertEquals(0, SerialConfig.DEFAULT.getStopBitsCode());
+        assertEquals(1, SerialConfig.DEFAULT.withStopBits(UsbSerialInterface.STOP_BITS_15).getStopBitsCode());
+        assertEquals(2, SerialConfig.DEFAULT.withStopBits(UsbSerialInterface.STOP_BITS_2).getStopBitsCode());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsUnknownParity() {
+        SerialConfig.DEFAULT.withParity(7);
+    }
+}
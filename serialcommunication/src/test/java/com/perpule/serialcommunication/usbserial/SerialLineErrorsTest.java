@@ -0,0 +1,84 @@
+package com.perpule.serialcommunication.usbserial;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SerialLineErrorsTest {
+
+    @Test
+    public void update_countsEveryReport() {
+        SerialLineErrors errors = new SerialLineErrors();
+        assertTrue(errors.update(SerialLineErrors.PARITY_BIT));
+        assertFalse(errors.update(SerialLineErrors.PARITY_BIT)); // Not a new condition, but a new occurrence
+        assertFalse(errors.update(SerialLineErrors.PARITY_BIT));
+        assertFalse(errors.update(0));
+        assertTrue(errors.update(SerialLineErrors.PARITY_BIT | SerialLineErrors.BREAK_BIT));
+
+        assertEquals(4, errors.getParityErrors());
+        assertEquals(1, errors.getBreakInterrupts());
+        assertEquals(0, errors.getFramingErrors());
+        assertEquals(0, errors.getOverrunErrors());
+    }
+
+    @Test
+    public void update_countsOccurrencesOfTransfer() {
+        SerialLineErrors errors = new SerialLineErrors();
+        int[] occurrences = {0, 7, 0, 0}; // Seven packets of the transfer flagged a framing error
+        errors.update(SerialLineErrors.FRAMING_BIT, occurrences);
+        errors.update(SerialLineErrors.FRAMING_BIT, occurrences);
+
+        assertEquals(14, errors.getFramingErrors());
+        assertEquals(0, errors.getParityErrors());
+    }
+
+    @Test
+    public void update_steadyErrorStormCoalescesEvents() {
+        SerialLineErrors errors = new SerialLineErrors();
+        final List<int[]> events = new ArrayList<>();
+        errors.setListener(new SerialLineErrors.Listener() {
+            @Override
+            public void onLineError(int error, int count) {
+                events.add(new int[]{error, count});
+            }
+        });
+        errors.setEventInterval(10000);
+
+        for (int i = 0; i < 100; i++)
+            errors.update(SerialLineErrors.PARITY_BIT);
+        assertEquals(100, errors.getParityErrors());
+        assertEquals(1, events.size());
+    }
+
+    @Test
+    public void update_coalescesEvents() throws InterruptedException {
+        SerialLineErrors errors = new SerialLineErrors();
+        final List<int[]> events = new ArrayList<>();
+        errors.setListener(new SerialLineErrors.Listener() {
+            @Override
+            public void onLineError(int error, int count) {
+                events.add(new int[]{error, count});
+            }
+        });
+        errors.setEventInterval(50);
+
+        for (int i = 0; i < 100; i++) {
+            errors.update(SerialLineErrors.FRAMING_BIT);
+            errors.update(0);
+        }
+        assertEquals(1, events.size()); // The first occurrence, the others wait for the interval
+        assertEquals(1, events.get(0)[1]);
+
+        Thread.sleep(60);
+        errors.update(0); // A clean report flushes the pending count
+        assertEquals(2, events.size());
+        assertEquals(SerialLineErrors.FRAMING, events.get(1)[0]);
+        assertEquals(99, events.get(1)[1]);
+        assertEquals(100, errors.getFramingErrors());
+    }
+}
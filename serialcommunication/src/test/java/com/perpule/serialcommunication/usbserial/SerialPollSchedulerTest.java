@@ -0,0 +1,69 @@
+package com.perpule.serialcommunication.usbserial;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SerialPollSchedulerTest {
+
+    @Test
+    public void poll_failureDoesNotStopOtherTasks() throws InterruptedException {
+        SerialPollScheduler scheduler = SerialPollScheduler.getInstance();
+        SerialPollScheduler.PollTask failing = new SerialPollScheduler.PollTask(1, 50) {
+            @Override
+            boolean poll() {
+                throw new IllegalStateException("Control transfer on a closed connection");
+            }
+        };
+        final CountDownLatch polled = new CountDownLatch(5);
+        SerialPollScheduler.PollTask healthy = new SerialPollScheduler.PollTask(1, 1) {
+            @Override
+            boolean poll() {
+                polled.countDown();
+                return false;
+            }
+        };
+
+        scheduler.schedule(failing);
+        scheduler.schedule(healthy);
+        try {
+            assertTrue(polled.await(1, TimeUnit.SECONDS));
+            assertEquals(50, failing.getInterval()); // Backed off to its maximum
+        } finally {
+            scheduler.cancel(failing);
+            scheduler.cancel(healthy);
+        }
+    }
+
+    @Test
+    public void cancel_waitsForRunningPoll() throws InterruptedException {
+        SerialPollScheduler scheduler = SerialPollScheduler.getInstance();
+        final CountDownLatch entered = new CountDownLatch(1);
+        final AtomicBoolean inPoll = new AtomicBoolean();
+        SerialPollScheduler.PollTask slow = new SerialPollScheduler.PollTask(1, 1) {
+            @Override
+            boolean poll() {
+                inPoll.set(true);
+                entered.countDown();
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                inPoll.set(false);
+                return false;
+            }
+        };
+
+        scheduler.schedule(slow);
+        assertTrue(entered.await(1, TimeUnit.SECONDS));
+        scheduler.cancel(slow);
+        assertFalse(inPoll.get());
+    }
+}
@@ -0,0 +1,74 @@
+package com.perpule.serialcommunication.usbserial;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SerialReadDispatcherTest {
+
+    @Test
+    public void stop_releasesUsbThreadBlockedOnFullQueue() throws InterruptedException {
+        // Drain tasks are never run, the queue stays full
+        Executor idle = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+            }
+        };
+        final SerialReadDispatcher dispatcher = new SerialReadDispatcher(new SerialBufferPool(4, 16), 1,
+                SerialReadDispatcher.OVERFLOW_BLOCK, idle);
+        dispatcher.start(null);
+        dispatcher.onReceivedData(ByteBuffer.allocate(8));
+
+        final CountDownLatch returned = new CountDownLatch(1);
+        Thread usbThread = new Thread() {
+            @Override
+            public void run() {
+                dispatcher.onReceivedData(ByteBuffer.allocate(8));
+                returned.countDown();
+            }
+        };
+        usbThread.start();
+        assertFalse(returned.await(50, TimeUnit.MILLISECONDS));
+
+        dispatcher.stop();
+        assertTrue(returned.await(1, TimeUnit.SECONDS));
+        assertEquals(0, dispatcher.getQueueDepth());
+    }
+
+    @Test
+    public void stop_waitsForCallbackWithoutInterruptingIt() throws InterruptedException {
+        SerialReadDispatcher dispatcher = new SerialReadDispatcher(new SerialBufferPool(4, 16), 4,
+                SerialReadDispatcher.OVERFLOW_DROP_NEWEST, null);
+        final CountDownLatch entered = new CountDownLatch(1);
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        final AtomicBoolean finished = new AtomicBoolean();
+        dispatcher.start(new UsbSerialInterface.UsbReadChunkCallback() {
+            @Override
+            public void onReceivedData(SerialBufferPool.Chunk chunk) {
+                entered.countDown();
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                }
+                chunk.release();
+                finished.set(true);
+            }
+        });
+
+        dispatcher.onReceivedData(ByteBuffer.allocate(8));
+        assertTrue(entered.await(1, TimeUnit.SECONDS));
+        dispatcher.stop();
+
+        assertTrue(finished.get());
+        assertFalse(interrupted.get());
+    }
+}
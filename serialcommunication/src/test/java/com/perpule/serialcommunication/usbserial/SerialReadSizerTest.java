@@ -0,0 +1,84 @@
+package com.perpule.serialcommunication.usbserial;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SerialReadSizerTest {
+
+    @Test
+    public void fixedSize_defaultsToLegacySizeAndRoundsToPackets() {
+        SerialReadSizer sizer = new SerialReadSizer();
+        assertFalse(sizer.isAdaptive());
+        assertEquals(SerialBuffer.DEFAULT_READ_BUFFER_SIZE, sizer.getSize());
+
+        sizer.setRequestedSize(100);
+        sizer.reset(64, 9600);
+        assertEquals(128, sizer.getSize());
+        sizer.onCompleted(128);
+        assertEquals(128, sizer.getSize());
+    }
+
+    @Test
+    public void adaptive_followsBaudRate() {
+        SerialReadSizer sizer = new SerialReadSizer();
+        sizer.setRequestedSize(SerialReadSizer.ADAPTIVE);
+        assertTrue(sizer.isAdaptive());
+
+        sizer.reset(64, 9600);
+        assertEquals(64, sizer.getSize());
+
+        sizer.setBaudRate(921600);
+        assertEquals(960, sizer.getSize()); // 10 ms of data, rounded up to 64 byte packets
+
+        sizer.reset(512, 9600);
+        sizer.setBaudRate(12000000);
+        assertEquals(12288, sizer.getSize());
+    }
+
+    @Test
+    public void adaptive_growsOnFullTransfersUpToMaxLatency() {
+        SerialReadSizer sizer = new SerialReadSizer();
+        sizer.setRequestedSize(SerialReadSizer.ADAPTIVE);
+        sizer.reset(64, 9600);
+
+        sizer.onCompleted(64);
+        assertEquals(128, sizer.getSize());
+        for (int i = 0; i < 10; i++)
+            sizer.onCompleted(sizer.getSize());
+        assertEquals(128, sizer.getSize()); // 100 ms at 9600 baud
+
+        sizer.reset(512, 3000000);
+        for (int i = 0; i < 10; i++)
+            sizer.onCompleted(sizer.getSize());
+        assertEquals(SerialReadSizer.MAX_SIZE, sizer.getSize());
+    }
+
+    @Test
+    public void adaptive_shrinksAfterShortTransfers() {
+        SerialReadSizer sizer = new SerialReadSizer();
+        sizer.setRequestedSize(SerialReadSizer.ADAPTIVE);
+        sizer.reset(64, 921600);
+        assertEquals(960, sizer.getSize());
+
+        for (int i = 0; i < 15; i++)
+            sizer.onCompleted(10);
+        sizer.onCompleted(500); // Breaks the run
+        for (int i = 0; i < 15; i++)
+            sizer.onCompleted(10);
+        assertEquals(960, sizer.getSize());
+
+        sizer.onCompleted(10);
+        assertEquals(512, sizer.getSize());
+        for (int i = 0; i < 100; i++)
+            sizer.onCompleted(2);
+        assertEquals(64, sizer.getSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requestedSize_tooLarge() {
+        new SerialReadSizer().setRequestedSize(SerialReadSizer.MAX_SIZE + 1);
+    }
+}
@@ -0,0 +1,137 @@
+package com.perpule.serialcommunication.usbserial;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class SerialSyncReaderTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    @Test
+    public void readFully_spansTransfersAndKeepsLeftover() throws IOException {
+        FakeSource source = new FakeSource("abc", "defg", "hij");
+        SerialSyncReader reader = new SerialSyncReader(source, 64, 16);
+        byte[] dst = new byte[8];
+
+        reader.readFully(dst, 1, 5, SerialSyncReader.deadlineAfter(100));
+
+        assertEquals("abcde", new String(dst, 1, 5, ASCII));
+        assertEquals(2, reader.available());
+        reader.readFully(dst, 0, 5, SerialSyncReader.deadlineAfter(100));
+        assertEquals("fghij", new String(dst, 0, 5, ASCII));
+        assertEquals(3, source.transfers);
+    }
+
+    @Test
+    public void readFully_deadlineReportsBytesRead() throws IOException {
+        SerialSyncReader reader = new SerialSyncReader(new FakeSource("abc"), 64, 16);
+        byte[] dst = new byte[8];
+
+        try {
+            reader.readFully(dst, 0, 8, SerialSyncReader.deadlineAfter(20));
+            fail();
+        } catch (InterruptedIOException e) {
+            assertEquals(3, e.bytesTransferred);
+            assertEquals("abc", new String(dst, 0, 3, ASCII));
+        }
+    }
+
+    @Test
+    public void readUntil_returnsLinesAcrossTransfers() throws IOException {
+        SerialSyncReader reader = new SerialSyncReader(new FakeSource("OK\r", "\nERR", "OR\r\n"), 64, 16);
+        byte[] dst = new byte[16];
+
+        int length = reader.readUntil((byte) '\n', dst, 0, dst.length, SerialSyncReader.deadlineAfter(100));
+        assertEquals("OK\r\n", new String(dst, 0, length, ASCII));
+        assertEquals(3, reader.available());
+
+        length = reader.readUntil((byte) '\n', dst, 0, dst.length, SerialSyncReader.deadlineAfter(100));
+        assertEquals("ERROR\r\n", new String(dst, 0, length, ASCII));
+        assertEquals(0, reader.available());
+    }
+
+    @Test(expected = IOException.class)
+    public void readUntil_failsPastMaxLength() throws IOException {
+        SerialSyncReader reader = new SerialSyncReader(new FakeSource("0123456789\n"), 64, 16);
+        reader.readUntil((byte) '\n', new byte[8], 0, 8, SerialSyncReader.deadlineAfter(100));
+    }
+
+    @Test
+    public void readFrame_skipsGarbageAndWaitsForWholeFrame() throws IOException {
+        // Frames are 0x7E, a length byte and that many payload bytes
+        FakeSource source = new FakeSource(new byte[]{1, 2, 0x7E, 3, 'a'}, new byte[]{'b', 'c', 0x7E, 1});
+        SerialSyncReader reader = new SerialSyncReader(source, 64, 16);
+
+        assertArrayEquals("abc".getBytes(ASCII), reader.readFrame(new LengthDecoder(), SerialSyncReader.deadlineAfter(100)));
+        assertEquals(2, reader.available());
+        try {
+            reader.readFrame(new LengthDecoder(), SerialSyncReader.deadlineAfter(20));
+            fail();
+        } catch (InterruptedIOException e) {
+            assertEquals(2, reader.available()); // The partial frame stays buffered
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void readFrame_failsOnFrameLargerThanBuffer() throws IOException {
+        SerialSyncReader reader = new SerialSyncReader(new FakeSource(new byte[]{0x7E, 100}), 32, 16);
+        reader.readFrame(new LengthDecoder(), SerialSyncReader.deadlineAfter(100));
+    }
+
+    private static class LengthDecoder implements SerialSyncReader.FrameDecoder<byte[]> {
+        @Override
+        public int frameLength(byte[] buffer, int offset, int length) {
+            if (buffer[offset] != 0x7E)
+                return -1;
+            if (length < 2)
+                return 0;
+            return 2 + buffer[offset + 1];
+        }
+
+        @Override
+        public byte[] decode(byte[] buffer, int offset, int length) {
+            return Arrays.copyOfRange(buffer, offset + 2, offset + length);
+        }
+    }
+
+    /*
+     * Hands out one chunk per transfer, then times out like bulkTransfer() does
+     */
+    private static class FakeSource implements SerialSyncReader.Source {
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+        int transfers;
+
+        FakeSource(String... chunks) {
+            for (String chunk : chunks)
+                this.chunks.add(chunk.getBytes(ASCII));
+        }
+
+        FakeSource(byte[]... chunks) {
+            this.chunks.addAll(Arrays.asList(chunks));
+        }
+
+        @Override
+        public int read(byte[] buffer, int timeout) {
+            transfers++;
+            byte[] chunk = chunks.poll();
+            if (chunk == null) {
+                try {
+                    Thread.sleep(timeout);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return -1;
+            }
+            System.arraycopy(chunk, 0, buffer, 0, chunk.length);
+            return chunk.length;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.perpule.serialcommunication.usbserial;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SerialWriteSchedulerTest {
+
+    @Test
+    public void transferSize_wholePacketsFollowingBaudRate() {
+        SerialWriteScheduler scheduler = new SerialWriteScheduler();
+        scheduler.reset(64, 9600);
+        assertEquals(960, scheduler.getTransferSize()); // One second of data
+
+        scheduler.setBaudRate(300);
+        assertEquals(64, scheduler.getTransferSize());
+
+        scheduler.setBaudRate(3000000);
+        assertEquals(SerialWriteScheduler.MAX_TRANSFER_SIZE, scheduler.getTransferSize());
+
+        scheduler.reset(512, 115200);
+        assertEquals(11264, scheduler.getTransferSize());
+    }
+
+    @Test
+    public void write_splitsOnTransferSize() {
+        SerialWriteScheduler scheduler = new SerialWriteScheduler();
+        scheduler.reset(64, 9600);
+        FakeTransport transport = new FakeTransport(Integer.MAX_VALUE);
+        byte[] data = data(2500);
+
+        assertEquals(2500, scheduler.write(transport, data, 0, data.length, 1000));
+
+        assertEquals(listOf(960, 960, 580), transport.lengths);
+        assertArrayEquals(data, transport.received.toByteArray());
+        assertEquals(2500, scheduler.getBytesWritten());
+        assertEquals(0, scheduler.getFailedWrites());
+    }
+
+    @Test
+    public void write_resumesPartialTransfers() {
+        SerialWriteScheduler scheduler = new SerialWriteScheduler();
+        scheduler.reset(64, 9600);
+        FakeTransport transport = new FakeTransport(100); // The device takes at most 100 bytes per transfer
+        byte[] data = data(300);
+
+        assertEquals(290, scheduler.write(transport, data, 10, 290, 1000));
+
+        assertEquals(listOf(290, 190, 90), transport.lengths);
+        assertArrayEquals(Arrays.copyOfRange(data, 10, 300), transport.received.toByteArray());
+    }
+
+    @Test
+    public void write_stopsAtFailedTransfer() {
+        SerialWriteScheduler scheduler = new SerialWriteScheduler();
+        scheduler.reset(64, 9600);
+        FakeTransport transport = new FakeTransport(Integer.MAX_VALUE);
+        transport.failAfter = 1;
+        byte[] data = data(2000);
+
+        assertEquals(960, scheduler.write(transport, data, 0, data.length, 1000));
+        assertEquals(960, scheduler.getBytesWritten());
+        assertEquals(1, scheduler.getFailedWrites());
+    }
+
+    @Test
+    public void writeStalling_timeoutAppliesToEachTransfer() {
+        SerialWriteScheduler scheduler = new SerialWriteScheduler();
+        scheduler.reset(64, 9600);
+        FakeTransport transport = new FakeTransport(Integer.MAX_VALUE);
+        transport.delay = 30; // A slow line, the whole region takes well over one timeout
+        byte[] data = data(4000);
+
+        assertEquals(4000, scheduler.writeStalling(transport, data, 0, data.length, 50));
+
+        assertEquals(listOf(960, 960, 960, 960, 160), transport.lengths);
+        assertArrayEquals(data, transport.received.toByteArray());
+        assertEquals(0, scheduler.getFailedWrites());
+
+        // The same timeout as one deadline for the whole write gives up early
+        transport.lengths.clear();
+        assertTrue(scheduler.write(transport, data, 0, data.length, 50) < data.length);
+        assertEquals(1, scheduler.getFailedWrites());
+    }
+
+    @Test
+    public void write_zeroLengthPacketOnPacketBoundary() {
+        SerialWriteScheduler scheduler = new SerialWriteScheduler();
+        scheduler.reset(64, 9600);
+        FakeTransport transport = new FakeTransport(Integer.MAX_VALUE);
+
+        scheduler.write(transport, data(128), 0, 128, 1000);
+        assertEquals(listOf(128), transport.lengths);
+
+        scheduler.setZeroLengthPackets(true);
+        transport.lengths.clear();
+        scheduler.write(transport, data(128), 0, 128, 1000);
+        assertEquals(listOf(128, 0), transport.lengths);
+
+        transport.lengths.clear();
+        scheduler.write(transport, data(100), 0, 100, 1000);
+        assertEquals(listOf(100), transport.lengths);
+    }
+
+    @Test
+    public void nextChunk_matchesTransfersOfWrite() {
+        SerialWriteScheduler scheduler = new SerialWriteScheduler();
+        scheduler.reset(64, 9600);
+        scheduler.setZeroLengthPackets(true);
+
+        assertEquals(scheduler.getTransferSize(), scheduler.nextChunk(10000));
+        assertEquals(100, scheduler.nextChunk(100));
+        assertTrue(scheduler.needsZeroLengthPacket(128));
+        assertFalse(scheduler.needsZeroLengthPacket(100));
+        assertFalse(scheduler.needsZeroLengthPacket(0));
+
+        scheduler.onWritten(128, 64);
+        assertEquals(64, scheduler.getBytesWritten());
+        assertEquals(1, scheduler.getFailedWrites());
+    }
+
+    @Test
+    public void write_gathersBuffersIntoTransfers() {
+        SerialWriteScheduler scheduler = new SerialWriteScheduler();
+        scheduler.reset(64, 9600);
+        scheduler.setZeroLengthPackets(true);
+        FakeTransport transport = new FakeTransport(Integer.MAX_VALUE);
+        byte[] data = data(1920);
+        ByteBuffer header = ByteBuffer.wrap(data, 0, 10);
+        ByteBuffer payload = ByteBuffer.allocateDirect(1900);
+        payload.put(data, 10, 1900).flip();
+        ByteBuffer checksum = ByteBuffer.wrap(data, 1910, 10).slice();
+        ByteBuffer[] frame = {header, payload, checksum};
+
+        assertEquals(1920, scheduler.write(transport, frame, 1920, 1000));
+
+        assertEquals(listOf(960, 960, 0), transport.lengths); // Zero length packet only after the last transfer
+        assertArrayEquals(data, transport.received.toByteArray());
+        assertEquals(0, header.remaining() + payload.remaining() + checksum.remaining());
+    }
+
+    @Test
+    public void write_gatherLeavesUnsentBytesInBuffers() {
+        SerialWriteScheduler scheduler = new SerialWriteScheduler();
+        scheduler.reset(64, 9600);
+        FakeTransport transport = new FakeTransport(Integer.MAX_VALUE);
+        transport.failAfter = 2;
+        ByteBuffer first = ByteBuffer.wrap(data(500));
+        ByteBuffer second = ByteBuffer.wrap(data(2000));
+
+        transport.maxAcceptedAfter(1, 100); // The second transfer is cut short
+        assertEquals(1060, scheduler.write(transport, new ByteBuffer[]{first, second}, 2500, 1000));
+
+        assertEquals(500, first.position());
+        assertEquals(560, second.position());
+        assertEquals(1, scheduler.getFailedWrites());
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) i;
+        return data;
+    }
+
+    private static List<Integer> listOf(int... values) {
+        List<Integer> list = new ArrayList<>();
+        for (int value : values)
+            list.add(value);
+        return list;
+    }
+
+    private static class FakeTransport implements SerialWriteScheduler.Transport {
+        final List<Integer> lengths = new ArrayList<>();
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        private final int maxAccepted;
+        private int limitFrom = Integer.MAX_VALUE;
+        private int limitedMaxAccepted;
+        int failAfter = Integer.MAX_VALUE;
+        int delay; // ms each transfer takes
+
+        FakeTransport(int maxAccepted) {
+            this.maxAccepted = maxAccepted;
+        }
+
+        void maxAcceptedAfter(int transfers, int maxAccepted) {
+            this.limitFrom = transfers;
+            this.limitedMaxAccepted = maxAccepted;
+        }
+
+        @Override
+        public int bulkTransfer(byte[] data, int offset, int length, int timeout) {
+            if (lengths.size() == failAfter)
+                return -1;
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            int accepted = Math.min(length, lengths.size() >= limitFrom ? limitedMaxAccepted : maxAccepted);
+            lengths.add(length);
+            received.write(data, offset, accepted);
+            return accepted;
+        }
+    }
+}
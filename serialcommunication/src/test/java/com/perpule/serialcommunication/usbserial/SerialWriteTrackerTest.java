@@ -0,0 +1,130 @@
+package com.perpule.serialcommunication.usbserial;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SerialWriteTrackerTest {
+
+    @Test
+    public void transfersStopAtWriteBoundaries() throws Exception {
+        SerialBuffer buffer = new SerialBuffer(true);
+        SerialRingBuffer ring = buffer.getWriteBuffer();
+        SerialWriteTracker tracker = buffer.getWriteTracker();
+        buffer.putWriteBuffer(new byte[100]);
+        final SerialWriteFuture[] completed = new SerialWriteFuture[1];
+        SerialWriteFuture write = buffer.putWriteAsync(wrap(50), SerialWriteFuture.NO_DEADLINE);
+        write.setCallback(new UsbSerialInterface.UsbWriteCallback() {
+            @Override
+            public void onWriteCompleted(SerialWriteFuture write) {
+                completed[0] = write;
+            }
+        });
+        buffer.putWriteBuffer(new byte[30]);
+
+        // Untracked bytes in front of the write
+        long position = ring.readPosition();
+        assertEquals(100, tracker.limit(position, ring.readableLength()));
+        assertNull(tracker.at(position));
+        ring.consume(100);
+
+        // The write is sent in two transfers
+        position = ring.readPosition();
+        assertSame(write, tracker.at(position));
+        assertEquals(50, tracker.limit(position, ring.readableLength()));
+        tracker.onSent(write, position, 20, 20);
+        ring.consume(20);
+        assertFalse(write.isDone());
+        position = ring.readPosition();
+        tracker.onSent(write, position, 30, 30);
+        ring.consume(30);
+
+        assertTrue(write.isSuccessful());
+        assertEquals(50, (int) write.get());
+        assertSame(write, completed[0]);
+        assertNull(tracker.at(ring.readPosition()));
+        assertEquals(30, tracker.limit(ring.readPosition(), ring.readableLength()));
+    }
+
+    @Test
+    public void shortTransferFailsTheWrite() throws Exception {
+        SerialBuffer buffer = new SerialBuffer(true);
+        SerialRingBuffer ring = buffer.getWriteBuffer();
+        SerialWriteTracker tracker = buffer.getWriteTracker();
+        SerialWriteFuture write = buffer.putWriteAsync(wrap(64), SerialWriteFuture.NO_DEADLINE);
+
+        long position = ring.readPosition();
+        tracker.onSent(write, position, 32, 10);
+        ring.consume(32);
+
+        assertTrue(write.isDone());
+        assertFalse(write.isSuccessful());
+        assertEquals(10, write.getBytesWritten());
+        assertNotNull(write.getError());
+        try {
+            write.get();
+            fail("get() should throw");
+        } catch (ExecutionException e) {
+            assertSame(write.getError(), e.getCause());
+        }
+
+        // The rest of the failed write is dropped without a transfer
+        position = ring.readPosition();
+        assertSame(write, tracker.at(position));
+        assertEquals(-1, write.transferTimeout(1000));
+        tracker.onSent(write, position, 32, 0);
+        ring.consume(32);
+        assertNull(tracker.at(ring.readPosition()));
+    }
+
+    @Test
+    public void deadline_replacesDefaultTimeout() throws Exception {
+        SerialBuffer buffer = new SerialBuffer(true);
+        SerialWriteFuture write = buffer.putWriteAsync(wrap(10), SerialWriteFuture.deadline(200));
+        int timeout = write.transferTimeout(UsbSerialDevice.USB_TIMEOUT);
+        assertTrue(timeout > 0 && timeout <= 200);
+
+        SerialWriteFuture expired = buffer.putWriteAsync(wrap(10), System.nanoTime() - 1);
+        assertEquals(-1, expired.transferTimeout(UsbSerialDevice.USB_TIMEOUT));
+        assertTrue(expired.isExpired());
+
+        SerialWriteFuture noDeadline = buffer.putWriteAsync(wrap(10), SerialWriteFuture.NO_DEADLINE);
+        assertEquals(UsbSerialDevice.USB_TIMEOUT, noDeadline.transferTimeout(UsbSerialDevice.USB_TIMEOUT));
+    }
+
+    @Test
+    public void resetFailsPendingWrites() {
+        SerialBuffer buffer = new SerialBuffer(true);
+        SerialWriteFuture write = buffer.putWriteAsync(wrap(10), SerialWriteFuture.NO_DEADLINE);
+
+        buffer.resetWriteBuffer();
+
+        assertTrue(write.isDone());
+        assertFalse(write.isSuccessful());
+        assertNull(buffer.getWriteTracker().at(buffer.getWriteBuffer().readPosition()));
+    }
+
+    @Test
+    public void writeLargerThanBufferFails() {
+        SerialBuffer buffer = new SerialBuffer(true);
+        SerialWriteFuture write = buffer.putWriteAsync(wrap(buffer.getWriteBuffer().capacity() + 1),
+                SerialWriteFuture.NO_DEADLINE);
+
+        assertTrue(write.isDone());
+        assertFalse(write.isSuccessful());
+        assertEquals(0, buffer.getQueuedBytes());
+    }
+
+    private static ByteBuffer[] wrap(int length) {
+        return new ByteBuffer[]{ByteBuffer.wrap(new byte[length])};
+    }
+}